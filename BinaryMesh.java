@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import org.joml.Matrix4f;
+
+/**
+ * A mesh in the binary format written by MeshConverter, memory mapped so the
+ * vertex and index data go from the page cache to glBufferData without being
+ * copied into Java arrays.
+ *
+ * The file is little endian: a HEADER_SIZE byte header, then the interleaved
+ * vertices, then the indices, each starting on a 4 byte boundary.
+ *
+ * <pre>
+ *  0 magic "CMSH"       4 version (u16)      6 flags (u16)
+ *  8 vertex count      12 index count       16 vertex stride in bytes
+ * 20 vertex offset     24 index offset      28 reserved
+ * 32 bounds min xyz    44 bounds max xyz    56 reserved
+ * </pre>
+ *
+ * Each vertex is a position followed by a texture coordinate. Positions are
+ * three floats, or with QUANTIZED_POSITIONS four normalized shorts (the last
+ * is padding) scaled to the bounds. Texture coordinates are two floats, or
+ * two half floats with HALF_TEXCOORDS. Indices are unsigned shorts, or ints
+ * with INDICES_32.
+ */
+public class BinaryMesh {
+    public static final int MAGIC = 0x48534D43; // "CMSH" read as a little endian int
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int QUANTIZED_POSITIONS = 1;
+    public static final int HALF_TEXCOORDS = 2;
+    public static final int INDICES_32 = 4;
+
+    private final ByteBuffer vertices, indices; // Slices of the mapping
+    private final int flags;
+    private final int vertexCount, indexCount, stride;
+    private final float[] bounds; // min xyz, max xyz
+
+    private BinaryMesh(ByteBuffer vertices, ByteBuffer indices, int flags, int vertexCount, int indexCount,
+            int stride, float[] bounds) {
+        this.vertices = vertices;
+        this.indices = indices;
+        this.flags = flags;
+        this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+        this.stride = stride;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Map a mesh file and check its header. Nothing is read past the header
+     * until upload().
+     */
+    public static BinaryMesh map(File file) throws IOException {
+        ByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a mesh file: " + file);
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid once closed
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapping.getInt(0) != MAGIC) {
+            throw new IOException("Not a mesh file: " + file);
+        }
+        if ((mapping.getShort(4) & 0xFFFF) != VERSION) {
+            throw new IOException("Unsupported mesh version " + (mapping.getShort(4) & 0xFFFF) + ": " + file);
+        }
+        int flags = mapping.getShort(6) & 0xFFFF;
+        int vertexCount = mapping.getInt(8);
+        int indexCount = mapping.getInt(12);
+        int stride = mapping.getInt(16);
+        int vertexOffset = mapping.getInt(20);
+        int indexOffset = mapping.getInt(24);
+        int expectedStride = ((flags & QUANTIZED_POSITIONS) != 0 ? 8 : 12) + ((flags & HALF_TEXCOORDS) != 0 ? 4 : 8);
+        long vertexEnd = vertexOffset + (long) vertexCount * stride;
+        long indexEnd = indexOffset + (long) indexCount * ((flags & INDICES_32) != 0 ? 4 : 2);
+        if (vertexCount < 0 || indexCount < 0 || stride != expectedStride || vertexOffset < HEADER_SIZE
+                || indexOffset < vertexEnd || indexEnd > mapping.capacity()) {
+            throw new IOException("Corrupt mesh header: " + file);
+        }
+        float[] bounds = new float[6];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = mapping.getFloat(32 + i * 4);
+        }
+        return new BinaryMesh(slice(mapping, vertexOffset, (int) (vertexEnd - vertexOffset)),
+                slice(mapping, indexOffset, (int) (indexEnd - indexOffset)), flags, vertexCount, indexCount, stride,
+                bounds);
+    }
+
+    private static ByteBuffer slice(ByteBuffer mapping, int offset, int length) {
+        ByteBuffer slice = mapping.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    /**
+     * @return GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+     */
+    public int getIndexType() {
+        return (flags & INDICES_32) != 0 ? GL_UNSIGNED_INT : GL_UNSIGNED_SHORT;
+    }
+
+    /**
+     * Matrix taking the stored positions back to mesh space, to apply before
+     * the model matrix. Identity unless positions are quantized.
+     */
+    public Matrix4f getPositionMatrix(Matrix4f dest) {
+        if ((flags & QUANTIZED_POSITIONS) == 0) {
+            return dest.identity();
+        }
+        return dest.translation((bounds[0] + bounds[3]) / 2, (bounds[1] + bounds[4]) / 2, (bounds[2] + bounds[5]) / 2)
+                .scale(halfExtent(0), halfExtent(1), halfExtent(2));
+    }
+
+    /**
+     * Half the size of the bounds along an axis, 1 for a flat axis so the
+     * scale stays invertible. MeshConverter quantizes against the same value.
+     */
+    float halfExtent(int axis) {
+        float halfExtent = (bounds[axis + 3] - bounds[axis]) / 2;
+        return halfExtent > 0 ? halfExtent : 1;
+    }
+
+    /**
+     * Fill the buffers straight from the mapping and point attributes 0
+     * (position) and 1 (texture coordinate) at them. The target VAO must be
+     * bound, it records the index buffer too.
+     */
+    public void upload(GpuResources resources, int vertexBuffer, int indexBuffer) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+        gl.glBufferData(GL_ARRAY_BUFFER, vertices.remaining(), vertices, GL_STATIC_DRAW);
+        resources.track(GpuResources.Category.BUFFER, vertexBuffer, vertices.remaining(), "mesh vertices");
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.remaining(), indices, GL_STATIC_DRAW);
+        resources.track(GpuResources.Category.BUFFER, indexBuffer, indices.remaining(), "mesh indices");
+
+        boolean quantized = (flags & QUANTIZED_POSITIONS) != 0;
+        if (quantized) {
+            gl.glVertexAttribPointer(0, 3, GL_SHORT, true, stride, 0);
+        } else {
+            gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, 0);
+        }
+        gl.glEnableVertexAttribArray(0);
+        int texCoordOffset = quantized ? 8 : 12;
+        if ((flags & HALF_TEXCOORDS) != 0) {
+            gl.glVertexAttribPointer(1, 2, GL_HALF_FLOAT, false, stride, texCoordOffset);
+        } else {
+            gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, stride, texCoordOffset);
+        }
+        gl.glEnableVertexAttribArray(1);
+    }
+}
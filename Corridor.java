@@ -2,6 +2,7 @@ import java.nio.*;
 import javax.swing.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
 import java.lang.Math;
 import static com.jogamp.opengl.GL4.*;
 import com.jogamp.opengl.*;
@@ -11,6 +12,7 @@ import com.jogamp.common.nio.Buffers;
 import org.joml.*;
 import com.jogamp.opengl.util.texture.Texture;
 import com.jogamp.opengl.util.texture.TextureIO;
+import jdk.jfr.EventType;
 
 public class Corridor extends JFrame implements GLEventListener {
     // Window set up
@@ -22,11 +24,11 @@ public class Corridor extends JFrame implements GLEventListener {
     private static final String WINDOW_TITLE = "Textured Corridor";
     private static final String VERTEX_SHADER_FILE = "corridor-vertex.glsl";
     private static final String FRAGMENT_SHADER_FILE = "corridor-fragment.glsl";
+    private static final String MULTIVIEW_VERTEX_SHADER_FILE = "corridor-multiview-vertex.glsl";
+    private static final String MULTIVIEW_GEOMETRY_SHADER_FILE = "corridor-multiview-geometry.glsl";
 
     // Shader
     private int renderingProgram; // Shader Id
-    private int mv_matrixID;
-    private int p_matrixID;
 
     // Matrix Management
     private Matrix4f viewMatrix; // Stores view matrix
@@ -36,17 +38,57 @@ public class Corridor extends JFrame implements GLEventListener {
     // Model Matrices
     private Matrix4f modelViewMatrix = new Matrix4f(); // Stores model matrix
 
-    // Initialize scratch buffer in order to pass matrices to the gpu/shaders
-    private final FloatBuffer scratchBuffer = Buffers.newDirectFloatBuffer(16);
+    // Hallway mesh, drawn by the GL path and by SoftwareRenderer
+    static final float[] TRAPEZOID_SECTION = {
+            // Top section:
+            -4f, 0.5f, 0.5f, -5f, 0.5f, -0.5f, 4f, 0.5f, 0.5f,
+            4f, 0.5f, 0.5f, -5f, 0.5f, -0.5f, 5f, 0.5f, -0.5f,
+            // Bottom section:
+            -5f, -0.5f, -0.5f, -4, -0.5f, 0.5f, 4f, -0.5f, 0.5f,
+            -5f, -0.5f, -0.5f, 4f, -0.5f, 0.5f, 5f, -0.5f, -0.5f,
+            // Long wall
+            -5f, 0.5f, -0.5f, -5f, -0.5f, -0.5f, 5f, -0.5f, -0.5f,
+            -5f, 0.5f, -0.5f, 5f, -0.5f, -0.5f, 5f, 0.5f, -0.5f,
+            // Short wall
+            -4f, -0.5f, 0.5f, -4f, 0.5f, 0.5f, 4f, -0.5f, 0.5f,
+            4f, -0.5f, 0.5f, -4f, 0.5f, 0.5f, 4f, 0.5f, 0.5f
+    };
+
+    // Texture coordinates for each TRAPEZOID_SECTION vertex
+    static final float[] ST_VALUES = {
+            1, 1, 0f, 0f, 1f, 9f,
+            1f, 9f, 0f, 0f, 0, 10f,
+            // Bottom
+            0f, 0f, 1, 1, 1f, 9f,
+            0f, 0f, 1f, 9f, 0, 10f,
+            // Long
+            0f, 1f, 0f, 0f, 10f, 0f,
+            0f, 1f, 10f, 0f, 10f, 1f,
+            // Short
+            0f, 0f, 0f, 1f, 8f, 0f,
+            8f, 0f, 0f, 1f, 8f, 1f
+    };
 
     private int[] vao = new int[1];
     private int[] vbo = new int[2];
 
+    // Hallway mesh for the GL path, the arrays above unless -Dcorridor.mesh=FILE names a MeshConverter file
+    private static final String MESH_FILE = System.getProperty("corridor.mesh");
+    private int hallwayIndexType; // 0 while drawing the built-in arrays, which have no indices
+    private int hallwayDrawCount;
+    private final Matrix4f hallwayMeshMatrix = new Matrix4f(); // Undoes quantization of loaded positions
+
     // Model Management
     private Matrix4f northHallModelMatrix = new Matrix4f();
     private Matrix4f eastHallModelMatrix = new Matrix4f();
     private Matrix4f southHallModelMatrix = new Matrix4f();
     private Matrix4f westHallModelMatrix = new Matrix4f();
+    private Matrix4f[] hallModelMatrices = { northHallModelMatrix, westHallModelMatrix, southHallModelMatrix,
+            eastHallModelMatrix }; // Same order as textureOne-Four
+
+    // Draw submission
+    private GLStateCache stateCache; // Skips GL calls for state that is already current
+    private final RenderQueue renderQueue = new RenderQueue(16);
 
     // Time Management
     private long startTime;
@@ -86,9 +128,45 @@ public class Corridor extends JFrame implements GLEventListener {
     private int totalTimePerSide; // Sum of walking and turning periods (w+t)
     private boolean walkTurn; // Boolean to check weather or not to set new target
 
-    private int textureOneID, textureTwoID, textureThreeID, textureFourID; // Texture Ids
+    private int[] hallwayTextureIDs = new int[4]; // Texture Ids, one per hallway in hallModelMatrices order
     private String textureOneS, textureTwoS, textureThreeS, textureFourS; // Texture Strings
 
+    // Virtual textures, only created when a texture argument is a tiled directory
+    private VirtualTextureSystem virtualTextures;
+    private VirtualTexture[] hallwayVirtualTextures = new VirtualTexture[4]; // Indexed like textureOne-Four
+
+    // Decodes and uploads hallway textures in the background, -Dcorridor.texture.blocking=true loads them in init
+    private static final boolean BLOCKING_TEXTURE_LOADS = Boolean.getBoolean("corridor.texture.blocking");
+    private TextureStreamer textureStreamer;
+
+    // CPU rendering for hosts without a GPU, -Dcorridor.renderer=software
+    private static final boolean SOFTWARE_RENDERER = "software".equals(System.getProperty("corridor.renderer"));
+
+    // Optional bloom, tone mapping and FXAA, -Dcorridor.post=true
+    private static final boolean POST_PROCESSING = Boolean.getBoolean("corridor.post");
+    private PostProcessor postProcessor;
+
+    // Optional baked lighting, -Dcorridor.lightmap=DIRECTORY written by LightmapBaker
+    private static final String LIGHTMAP_DIRECTORY = System.getProperty("corridor.lightmap");
+    private static final int LIGHTMAP_UNIT = 3; // layout (binding=3) in the fragment shader
+    private int lightmapTexture;
+    private int lightmapBuffer;
+
+    // Several side by side views drawn in one pass, -Dcorridor.views=COUNT
+    private MultiView multiView;
+
+    // Optional crowd of walkers, -Dcorridor.walkers=COUNT
+    private WalkerCrowd crowd;
+    private long lastCrowdUpdate;
+
+    // Instrumentation
+    private static final EventType FRAME_EVENT_TYPE = EventType.getEventType(CorridorEvents.FrameEvent.class);
+    private final FrameMetrics metrics = new FrameMetrics(); // Allocation free counters updated every frame
+    private MetricsServer metricsServer; // Optional Prometheus endpoint, null when disabled
+
+    // Every GL object created by the corridor, released on dispose
+    private final GpuResources resources = new GpuResources();
+
     /**
      * Main method for program. Process arguments and make call to
      * constructor.
@@ -151,6 +229,7 @@ public class Corridor extends JFrame implements GLEventListener {
                     "Step Count (integer/full number greater than 0)\n" +
                     "Step Height (integer/full number greater than 0)\n" +
                     "(optional) Strings (1-4) indicating the names of texture files (PNGs or JPEGs)\n" +
+                    "or directories written by VirtualTextureTiler\n" +
                     e + "\n");
         }
     }
@@ -171,8 +250,31 @@ public class Corridor extends JFrame implements GLEventListener {
         this.textureThreeS = textureThree;
         this.textureFourS = textureFour;
 
+        if (MESH_FILE != null && SOFTWARE_RENDERER) {
+            System.out.println("Mesh files are only loaded by the GL renderer");
+        }
+        multiView = MultiView.fromProperties();
+        if (multiView != null && SOFTWARE_RENDERER) {
+            System.out.println("Multiple views are only drawn by the GL renderer");
+            multiView = null;
+        }
+
+        int walkers = Integer.getInteger("corridor.walkers", 0);
+        if (walkers > 0 && SOFTWARE_RENDERER) {
+            System.out.println("Walkers are only drawn by the GL renderer");
+        } else if (walkers > 0 && multiView != null) {
+            System.out.println("Walkers are only drawn with a single view");
+        } else if (walkers > 0) {
+            crowd = new WalkerCrowd(walkers, this.walkingPeriod, this.turningPeriod, stepCount, stepHeight);
+            System.out.println("Simulating " + walkers + " walkers with the " + crowd.getKernelName() + " kernel");
+        }
+
         setTitle(WINDOW_TITLE);
         setSize(WINDOW_WIDTH, WINDOW_HEIGHT);
+        if (SOFTWARE_RENDERER) {
+            startSoftwareRenderer();
+            return;
+        }
         glCanvas = new GLCanvas();
         glCanvas.addGLEventListener(this);
         this.add(glCanvas);
@@ -183,6 +285,87 @@ public class Corridor extends JFrame implements GLEventListener {
         animator.start();
     }
 
+    /**
+     * Draw the corridor with SoftwareRenderer instead of GL, on a render
+     * thread that shows each frame in the window.
+     */
+    private void startSoftwareRenderer() {
+        String[] textureFiles = { textureOneS, textureTwoS, textureThreeS, textureFourS };
+        SoftwareTexture[] textures = new SoftwareTexture[textureFiles.length];
+        for (int i = 0; i < textureFiles.length; i++) {
+            try {
+                textures[i] = SoftwareTexture.load(textureFiles[i]);
+            } catch (IOException e) {
+                System.out.println(
+                        "Sorry your textures did not load correctly. \nPlease make sure they are spelled and the texture \nfiles are in the correct specified location\n"
+                                + e);
+                return;
+            }
+        }
+        initializeScene();
+
+        metricsServer = MetricsServer.startFromProperties(metrics, resources);
+        setDefaultCloseOperation(EXIT_ON_CLOSE); // Set shutdown condition on close
+        SoftwareCanvas canvas = new SoftwareCanvas();
+        this.add(canvas);
+        this.setVisible(true);
+        setLocationRelativeTo(null);
+
+        // Render as fast as frames can be shown, like the GL Animator
+        Thread renderThread = new Thread(() -> {
+            SoftwareRenderer renderer = new SoftwareRenderer(canvas.getWidth(), canvas.getHeight());
+            setSoftwarePerspective(renderer);
+            try {
+                while (isDisplayable()) {
+                    if (canvas.getWidth() != renderer.getWidth() || canvas.getHeight() != renderer.getHeight()) {
+                        renderer.resize(canvas.getWidth(), canvas.getHeight());
+                        setSoftwarePerspective(renderer);
+                    }
+                    renderSoftwareFrame(renderer, textures);
+                    canvas.present(renderer.getImage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "software-renderer");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    private void setSoftwarePerspective(SoftwareRenderer renderer) {
+        aspectRatio = (float) renderer.getWidth() / (float) renderer.getHeight();
+        perspectiveMatrix.setPerspective((float) Math.toRadians(60.0f), aspectRatio, 0.1f, 10000.0f);
+    }
+
+    /**
+     * The software equivalent of display(): the same camera, hallways and
+     * instrumentation, drawn on the CPU.
+     */
+    private void renderSoftwareFrame(SoftwareRenderer renderer, SoftwareTexture[] textures) {
+        metrics.frameStart(System.nanoTime());
+        CorridorEvents.FrameEvent frameEvent = null;
+        if (FRAME_EVENT_TYPE.isEnabled()) {
+            frameEvent = new CorridorEvents.FrameEvent();
+            frameEvent.begin();
+        }
+
+        updateCamera();
+        renderer.begin(0x000000); // Black Background
+        for (int i = 0; i < hallModelMatrices.length; i++) {
+            this.viewMatrix.mul(hallModelMatrices[i], modelViewMatrix);
+            renderer.draw(TRAPEZOID_SECTION, ST_VALUES, modelViewMatrix, perspectiveMatrix, textures[i]);
+            metrics.drawCall();
+        }
+        renderer.finish();
+
+        if (frameEvent != null) {
+            frameEvent.frame = metrics.getFrameCount();
+            frameEvent.drawCalls = metrics.getFrameDrawCalls();
+            frameEvent.commit();
+        }
+        metrics.frameEnd();
+    }
+
     /*
      * Initialize matrices and load models as well as all other necessary
      * pre-computation.
@@ -191,85 +374,50 @@ public class Corridor extends JFrame implements GLEventListener {
     public void init(GLAutoDrawable arg0) {
         // Set up window
         this.gl = (GL4) GLContext.getCurrentGL();
-        renderingProgram = Utils.createShaderProgram(VERTEX_SHADER_FILE, FRAGMENT_SHADER_FILE); // Ready the program.
+        this.stateCache = new GLStateCache(gl); // New context, nothing is known about its state
+        if (multiView != null) {
+            // Same fragment shader, the geometry shader fans each triangle out to every view
+            renderingProgram = Utils.createShaderProgram(MULTIVIEW_VERTEX_SHADER_FILE, MULTIVIEW_GEOMETRY_SHADER_FILE,
+                    FRAGMENT_SHADER_FILE);
+            multiView.init(renderingProgram);
+        } else {
+            renderingProgram = Utils.createShaderProgram(VERTEX_SHADER_FILE, FRAGMENT_SHADER_FILE); // Ready the program.
+        }
+        resources.track(GpuResources.Category.PROGRAM, renderingProgram, 0, "corridor program");
+        if (metricsServer == null) {
+            metricsServer = MetricsServer.startFromProperties(metrics, resources);
+        }
 
         setDefaultCloseOperation(EXIT_ON_CLOSE); // Set shutdown condition on close
 
         // Load in textures
-        this.textureOneID = loadTexture(textureOneS);
-        gl.glBindTexture(GL_TEXTURE_2D, textureOneID);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-
-        this.textureTwoID = loadTexture(textureTwoS);
-        gl.glBindTexture(GL_TEXTURE_2D, textureTwoID);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-
-        this.textureThreeID = loadTexture(textureThreeS);
-        gl.glBindTexture(GL_TEXTURE_2D, textureThreeID);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-
-        this.textureFourID = loadTexture(textureFourS);
-        gl.glBindTexture(GL_TEXTURE_2D, textureFourID);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-
-        // Camera Set Up:
-        this.cameraX = startingPoint[0];
-        this.cameraY = startingPoint[1];
-        this.cameraZ = startingPoint[2];
+        if (!BLOCKING_TEXTURE_LOADS) {
+            textureStreamer = new TextureStreamer(resources, this::textureLoadFailed);
+        }
+        this.hallwayTextureIDs[0] = loadHallwayTexture(textureOneS, 0);
+        this.hallwayTextureIDs[1] = loadHallwayTexture(textureTwoS, 1);
+        this.hallwayTextureIDs[2] = loadHallwayTexture(textureThreeS, 2);
+        this.hallwayTextureIDs[3] = loadHallwayTexture(textureFourS, 3);
 
         gl.glEnable(GL_CULL_FACE);
         initializeModels();
-
-        // Initial Transition Matrices
-        Matrix4f northHallTranslation = new Matrix4f().translate(0, 0, -450);
-        Matrix4f eastHallTranslation = new Matrix4f().translate(-450, 0, 0);
-        Matrix4f southHallTranslation = new Matrix4f().translate(0, 0, 450);
-        Matrix4f wastHallTranslation = new Matrix4f().translate(450, 0, 0);
-
-        // Initial Rotation Matrices
-        Matrix4f northHallRotation = new Matrix4f().rotateY((float) Math.toRadians(0.0));
-        Matrix4f eastHallRotation = new Matrix4f().rotateY((float) Math.toRadians(90.0));
-        Matrix4f southHallRotation = new Matrix4f().rotateY((float) Math.toRadians(180.0));
-        Matrix4f westHallRotation = new Matrix4f().rotateY((float) Math.toRadians(270.0));
-
-        // Initial scaling Matrices
-        Matrix4f northHallScale = new Matrix4f().scale(100);
-        Matrix4f eastHallScale = new Matrix4f().scale(100);
-        Matrix4f southHallScale = new Matrix4f().scale(100);
-        Matrix4f westHallScale = new Matrix4f().scale(100);
-
-        // Initial model matrices Matrix * Translate * Rotate * Scale
-        northHallModelMatrix.mul(northHallTranslation).mul(northHallRotation).mul(northHallScale);
-        eastHallModelMatrix.mul(eastHallTranslation).mul(eastHallRotation).mul(eastHallScale);
-        southHallModelMatrix.mul(southHallTranslation).mul(southHallRotation).mul(southHallScale);
-        westHallModelMatrix.mul(wastHallTranslation).mul(westHallRotation).mul(westHallScale);
-
-        // Initialize Matrices
-        // Calculate initial view matrix
-        this.viewMatrix = new Matrix4f().setLookAt(this.cameraX, this.cameraY, cameraZ, 450f, 50f, -450f, 0, 1, 0);
-
-        // Shader Id Locations
-        this.mv_matrixID = gl.glGetUniformLocation(renderingProgram, "mv_matrix"); // Save model matrix id
-        this.p_matrixID = gl.glGetUniformLocation(renderingProgram, "p_matrix"); // Save model matrix id
+        if (LIGHTMAP_DIRECTORY != null) {
+            loadLightmap(new File(LIGHTMAP_DIRECTORY));
+        }
+        initializeScene();
 
         // Initialize Z buffers
         this.gl.glEnable(GL_DEPTH_TEST);
         this.gl.glDepthFunc(GL_LEQUAL);
 
-        // Initialize position vectors
-        this.target = new Vector3f().set(500, ((float) 2 / 3 - 0.5), -450);
-        this.upVector = new Vector3f().set(0, 1, 0);
-
-        // Time related initializations
-        this.startTime = System.currentTimeMillis();
-        this.totalTimePerSide = turningPeriod + walkingPeriod;
-        this.walkTurn = false;
-        this.newLocation = new Vector3f();
-        this.temp = new Vector3f();
+        if (crowd != null) {
+            crowd.init(resources);
+            this.lastCrowdUpdate = startTime;
+        }
+        if (POST_PROCESSING) {
+            postProcessor = new PostProcessor(resources, stateCache);
+        }
+        stateCache.invalidate(); // Loading above bound programs, buffers and textures directly
     }
 
     /*
@@ -277,12 +425,77 @@ public class Corridor extends JFrame implements GLEventListener {
      */
     @Override
     public void display(GLAutoDrawable arg0) {
+        metrics.frameStart(System.nanoTime());
+        // Only allocate the JFR event while a recording has it enabled
+        CorridorEvents.FrameEvent frameEvent = null;
+        if (FRAME_EVENT_TYPE.isEnabled()) {
+            frameEvent = new CorridorEvents.FrameEvent();
+            frameEvent.begin();
+        }
+
+        stateCache.beginFrame();
+        if (multiView != null) {
+            multiView.beginFrame();
+        }
+
+        // Stream in tiles requested by the last feedback pass
+        if (virtualTextures != null) {
+            virtualTextures.update();
+        }
+        // Continue any progressive texture uploads
+        if (textureStreamer != null && textureStreamer.isBusy()) {
+            textureStreamer.update();
+            stateCache.invalidateTextures(); // The streamer binds textures directly
+        }
+
         // Clear screen and Z buffer
-        this.gl.glClear(GL_COLOR_BUFFER_BIT); // clear screen
-        this.gl.glClear(GL_DEPTH_BUFFER_BIT); // clear Z-buffer
-        this.gl.glUseProgram(renderingProgram); // Shader Id to use
-        this.gl.glClearColor(0f, 0f, 0f, 1f); // Black Background
+        if (postProcessor != null) {
+            postProcessor.beginScene(); // Draw into its scene target instead of the window
+        }
+        stateCache.clearColor(0f, 0f, 0f, 1f); // Black Background
+        this.gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
+        updateCamera();
+
+        // Queue the hallways, the queue sorts them to group state changes
+        for (int i = 0; i < hallModelMatrices.length; i++) {
+            this.viewMatrix.mul(hallModelMatrices[i], modelViewMatrix).mul(hallwayMeshMatrix);
+            if (hallwayIndexType != 0) {
+                renderQueue.submitElements(renderingProgram, vao[0], hallwayTextureIDs[i], hallwayVirtualTextures[i],
+                        lightmapTexture != 0 ? i : -1, modelViewMatrix, hallwayIndexType, 0, hallwayDrawCount);
+            } else {
+                renderQueue.submit(renderingProgram, vao[0], hallwayTextureIDs[i], hallwayVirtualTextures[i],
+                        lightmapTexture != 0 ? i : -1, modelViewMatrix, 0, hallwayDrawCount);
+            }
+        }
+        renderQueue.execute(stateCache, perspectiveMatrix, virtualTextures, metrics);
+
+        if (crowd != null) {
+            drawCrowd();
+        }
+
+        if (postProcessor != null) {
+            postProcessor.finish();
+        }
+
+        if (virtualTextures != null) {
+            renderVirtualTextureFeedback();
+        }
 
+        metrics.stateCalls(stateCache.getFrameIssued(), stateCache.getFrameSkipped());
+        if (frameEvent != null) {
+            frameEvent.frame = metrics.getFrameCount();
+            frameEvent.drawCalls = metrics.getFrameDrawCalls();
+            frameEvent.commit();
+        }
+        metrics.frameEnd();
+    }
+
+    /**
+     * Move the camera along the loop for the current time and rebuild the
+     * view matrix.
+     */
+    private void updateCamera() {
         // Time calculations
         this.timeElapsed = (System.currentTimeMillis() - startTime) % (4 * totalTimePerSide);
         int Hallway = (int) (this.timeElapsed / this.totalTimePerSide);
@@ -326,72 +539,40 @@ public class Corridor extends JFrame implements GLEventListener {
             this.viewMatrix.setLookAt(cornerLocations[(Hallway + 1) % 4], target, upVector)
                     .rotateLocalY(-angleFromLast);
         }
+    }
 
-        // Get translation
-        this.viewMatrix.mul(northHallModelMatrix, modelViewMatrix);
-
-        // Load in texture S and T values to the shader
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
-        this.gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(1);
-
-        // MODEL * MODEL VIEW
-        // North corridor
-        this.gl.glUniformMatrix4fv(mv_matrixID, 1, false, modelViewMatrix.get(scratchBuffer));
-        this.gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
-
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(0);
-
-        this.gl.glActiveTexture(GL_TEXTURE0);
-        this.gl.glBindTexture(GL_TEXTURE_2D, textureOneID);
-
-        this.gl.glDrawArrays(GL_TRIANGLES, 0, 36);
-
-        // West corridor
-        this.viewMatrix.mul(westHallModelMatrix, modelViewMatrix);
-
-        this.gl.glUniformMatrix4fv(mv_matrixID, 1, false, modelViewMatrix.get(scratchBuffer));
-        this.gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
-
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(0);
-
-        this.gl.glBindTexture(GL_TEXTURE_2D, textureTwoID);
-
-        this.gl.glDrawArrays(GL_TRIANGLES, 0, 36);
-
-        // South corridor
-        this.viewMatrix.mul(southHallModelMatrix, modelViewMatrix);
-
-        this.gl.glUniformMatrix4fv(mv_matrixID, 1, false, modelViewMatrix.get(scratchBuffer));
-        this.gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
-
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(0);
-
-        this.gl.glActiveTexture(GL_TEXTURE0);
-        this.gl.glBindTexture(GL_TEXTURE_2D, textureThreeID);
-
-        this.gl.glDrawArrays(GL_TRIANGLES, 0, 36);
-
-        // East corridor
-        this.viewMatrix.mul(eastHallModelMatrix, modelViewMatrix);
-
-        this.gl.glUniformMatrix4fv(mv_matrixID, 1, false, modelViewMatrix.get(scratchBuffer));
-        this.gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
-
-        this.gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        this.gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-        this.gl.glEnableVertexAttribArray(0);
-
-        this.gl.glActiveTexture(GL_TEXTURE0);
-        this.gl.glBindTexture(GL_TEXTURE_2D, textureFourID);
+    /**
+     * Advance the walkers by the time since the last frame and draw them all
+     * with one instanced call.
+     */
+    private void drawCrowd() {
+        long now = System.currentTimeMillis();
+        crowd.update(now - lastCrowdUpdate);
+        lastCrowdUpdate = now;
+        metrics.walkerUpdate(crowd.getCount(), crowd.getLastUpdateNanos());
+
+        crowd.draw(viewMatrix, perspectiveMatrix, stateCache);
+        metrics.drawCall();
+    }
 
-        this.gl.glDrawArrays(GL_TRIANGLES, 0, 36);
+    /**
+     * Draw the hallways again into the small feedback buffer so the virtual
+     * texture system can see which tiles are visible.
+     */
+    private void renderVirtualTextureFeedback() {
+        stateCache.bindVertexArray(vao[0]);
+        virtualTextures.beginFeedback(perspectiveMatrix);
+        for (int i = 0; i < hallModelMatrices.length; i++) {
+            this.viewMatrix.mul(hallModelMatrices[i], modelViewMatrix).mul(hallwayMeshMatrix);
+            virtualTextures.drawFeedback(hallwayVirtualTextures[i], modelViewMatrix);
+            if (hallwayIndexType != 0) {
+                this.gl.glDrawElements(GL_TRIANGLES, hallwayDrawCount, hallwayIndexType, 0);
+            } else {
+                this.gl.glDrawArrays(GL_TRIANGLES, 0, hallwayDrawCount);
+            }
+            metrics.drawCall();
+        }
+        virtualTextures.endFeedback();
     }
 
     /**
@@ -404,20 +585,139 @@ public class Corridor extends JFrame implements GLEventListener {
         return (time % totalTimePerSide) < walkingPeriod;
     }
 
+    /**
+     * Place the hallways and reset the camera and clock to the start of the
+     * loop. Needs no GL context, the software renderer uses it too.
+     */
+    private void initializeScene() {
+        // Camera Set Up:
+        this.cameraX = startingPoint[0];
+        this.cameraY = startingPoint[1];
+        this.cameraZ = startingPoint[2];
+
+        setHallModelMatrices(hallModelMatrices);
+
+        // Initialize Matrices
+        // Calculate initial view matrix
+        this.viewMatrix = new Matrix4f().setLookAt(this.cameraX, this.cameraY, cameraZ, 450f, 50f, -450f, 0, 1, 0);
+
+        // Initialize position vectors
+        this.target = new Vector3f().set(500, ((float) 2 / 3 - 0.5), -450);
+        this.upVector = new Vector3f().set(0, 1, 0);
+
+        // Time related initializations
+        this.startTime = System.currentTimeMillis();
+        this.totalTimePerSide = turningPeriod + walkingPeriod;
+        this.walkTurn = false;
+        this.newLocation = new Vector3f();
+        this.temp = new Vector3f();
+    }
+
+    /**
+     * Place the hallways around the loop, filling matrices in hallModelMatrices
+     * order: north, west, south, east. LightmapBaker bakes the same placement.
+     */
+    static void setHallModelMatrices(Matrix4f[] matrices) {
+        // Initial Transition Matrices
+        Matrix4f northHallTranslation = new Matrix4f().translate(0, 0, -450);
+        Matrix4f eastHallTranslation = new Matrix4f().translate(-450, 0, 0);
+        Matrix4f southHallTranslation = new Matrix4f().translate(0, 0, 450);
+        Matrix4f wastHallTranslation = new Matrix4f().translate(450, 0, 0);
+
+        // Initial Rotation Matrices
+        Matrix4f northHallRotation = new Matrix4f().rotateY((float) Math.toRadians(0.0));
+        Matrix4f eastHallRotation = new Matrix4f().rotateY((float) Math.toRadians(90.0));
+        Matrix4f southHallRotation = new Matrix4f().rotateY((float) Math.toRadians(180.0));
+        Matrix4f westHallRotation = new Matrix4f().rotateY((float) Math.toRadians(270.0));
+
+        // Initial scaling Matrices
+        Matrix4f northHallScale = new Matrix4f().scale(100);
+        Matrix4f eastHallScale = new Matrix4f().scale(100);
+        Matrix4f southHallScale = new Matrix4f().scale(100);
+        Matrix4f westHallScale = new Matrix4f().scale(100);
+
+        // Initial model matrices Matrix * Translate * Rotate * Scale
+        // (reset first, init runs again if the GL context is recreated)
+        matrices[0].identity().mul(northHallTranslation).mul(northHallRotation).mul(northHallScale);
+        matrices[3].identity().mul(eastHallTranslation).mul(eastHallRotation).mul(eastHallScale);
+        matrices[2].identity().mul(southHallTranslation).mul(southHallRotation).mul(southHallScale);
+        matrices[1].identity().mul(wastHallTranslation).mul(westHallRotation).mul(westHallScale);
+    }
+
     /*
      * Upon resize event change the perspective matrix to reflect the new aspect
      * ratio of the screen.
      */
     @Override
     public void reshape(GLAutoDrawable arg0, int arg1, int arg2, int arg3, int arg4) {
+        CorridorEvents.ReshapeEvent reshapeEvent = new CorridorEvents.ReshapeEvent();
+        reshapeEvent.width = arg3;
+        reshapeEvent.height = arg4;
+        reshapeEvent.commit();
+
         aspectRatio = (float) glCanvas.getWidth() / (float) glCanvas.getHeight(); // Get new aspect ratio
         // Set new perspective
         perspectiveMatrix.setPerspective((float) Math.toRadians(60.0f), aspectRatio, 0.1f, 10000.0f);
+        if (multiView != null) {
+            multiView.reshape(arg3, arg4, perspectiveMatrix); // Narrower views, same vertical field of view
+        }
+        if (virtualTextures != null) {
+            virtualTextures.reshape(arg3, arg4);
+        }
+        if (postProcessor != null) {
+            postProcessor.reshape(arg3, arg4);
+        }
     }
 
     @Override
     public void dispose(GLAutoDrawable arg0) {
-        // TODO Auto-generated method stub
+        // Called on shutdown and when the context is lost, init() recreates everything
+        if (virtualTextures != null) {
+            virtualTextures.dispose();
+            virtualTextures = null;
+        }
+        for (int i = 0; i < hallwayVirtualTextures.length; i++) {
+            hallwayVirtualTextures[i] = null;
+        }
+        if (textureStreamer != null) {
+            textureStreamer.dispose();
+            textureStreamer = null;
+        }
+        if (postProcessor != null) {
+            postProcessor.dispose();
+            postProcessor = null;
+        }
+        if (crowd != null) {
+            crowd.dispose(resources);
+        }
+        for (int i = 0; i < hallwayTextureIDs.length; i++) {
+            if (hallwayTextureIDs[i] != 0) {
+                resources.release(GpuResources.Category.TEXTURE, hallwayTextureIDs[i]);
+                hallwayTextureIDs[i] = 0;
+            }
+        }
+        for (int buffer : vbo) {
+            resources.release(GpuResources.Category.BUFFER, buffer);
+        }
+        if (lightmapTexture != 0) {
+            resources.release(GpuResources.Category.TEXTURE, lightmapTexture);
+            resources.release(GpuResources.Category.BUFFER, lightmapBuffer);
+            lightmapTexture = 0;
+            lightmapBuffer = 0;
+        }
+        resources.release(GpuResources.Category.VERTEX_ARRAY, vao[0]);
+        resources.release(GpuResources.Category.PROGRAM, renderingProgram);
+
+        // Anything left over was leaked by its owner
+        resources.releaseAll();
+        if (GpuResources.isDebug()) {
+            System.out.println(resources.report());
+        }
+
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
     }
 
     /**
@@ -425,48 +725,138 @@ public class Corridor extends JFrame implements GLEventListener {
      */
     private void initializeModels() {
         GL4 gl = (GL4) GLContext.getCurrentGL();
-        float[] trapezoidSection = {
-                // Top section:
-                -4f, 0.5f, 0.5f, -5f, 0.5f, -0.5f, 4f, 0.5f, 0.5f,
-                4f, 0.5f, 0.5f, -5f, 0.5f, -0.5f, 5f, 0.5f, -0.5f,
-                // Bottom section:
-                -5f, -0.5f, -0.5f, -4, -0.5f, 0.5f, 4f, -0.5f, 0.5f,
-                -5f, -0.5f, -0.5f, 4f, -0.5f, 0.5f, 5f, -0.5f, -0.5f,
-                // Long wall
-                -5f, 0.5f, -0.5f, -5f, -0.5f, -0.5f, 5f, -0.5f, -0.5f,
-                -5f, 0.5f, -0.5f, 5f, -0.5f, -0.5f, 5f, 0.5f, -0.5f,
-                // Short wall
-                -4f, -0.5f, 0.5f, -4f, 0.5f, 0.5f, 4f, -0.5f, 0.5f,
-                4f, -0.5f, 0.5f, -4f, 0.5f, 0.5f, 4f, 0.5f, 0.5f
-        };
-
         // Set up Vao
         gl.glGenVertexArrays(vao.length, vao, 0);
+        resources.track(GpuResources.Category.VERTEX_ARRAY, vao[0], 0, "corridor VAO");
         gl.glBindVertexArray(vao[0]);
         gl.glGenBuffers(vbo.length, vbo, 0);
+        if (MESH_FILE != null && loadMesh(new File(MESH_FILE))) {
+            return;
+        }
+        hallwayIndexType = 0;
+        hallwayDrawCount = TRAPEZOID_SECTION.length / 3;
+        hallwayMeshMatrix.identity();
 
         // Load model into buffer location 0
         gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-        FloatBuffer vertBuf = Buffers.newDirectFloatBuffer(trapezoidSection);
+        FloatBuffer vertBuf = Buffers.newDirectFloatBuffer(TRAPEZOID_SECTION);
         gl.glBufferData(GL_ARRAY_BUFFER, vertBuf.limit() * 4, vertBuf, GL_STATIC_DRAW);
-
-        float[] STValues = {
-                1, 1, 0f, 0f, 1f, 9f,
-                1f, 9f, 0f, 0f, 0, 10f,
-                // Bottom
-                0f, 0f, 1, 1, 1f, 9f,
-                0f, 0f, 1f, 9f, 0, 10f,
-                // Long
-                0f, 1f, 0f, 0f, 10f, 0f,
-                0f, 1f, 10f, 0f, 10f, 1f,
-                // Short
-                0f, 0f, 0f, 1f, 8f, 0f,
-                8f, 0f, 0f, 1f, 8f, 1f
-        };
+        resources.track(GpuResources.Category.BUFFER, vbo[0], vertBuf.limit() * 4, "corridor positions");
+        gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0); // Recorded in the VAO
+        gl.glEnableVertexAttribArray(0);
 
         gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
-        FloatBuffer textureBuffer = Buffers.newDirectFloatBuffer(STValues);
+        FloatBuffer textureBuffer = Buffers.newDirectFloatBuffer(ST_VALUES);
         gl.glBufferData(GL_ARRAY_BUFFER, textureBuffer.limit() * 4, textureBuffer, GL_STATIC_DRAW);
+        resources.track(GpuResources.Category.BUFFER, vbo[1], textureBuffer.limit() * 4, "corridor texture coordinates");
+        gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
+        gl.glEnableVertexAttribArray(1);
+    }
+
+    /**
+     * Fill the hallway buffers from a mesh written by MeshConverter, vbo[0]
+     * with its vertices and vbo[1] with its indices. The hallway VAO must be
+     * bound.
+     *
+     * @return false, after saying why, if the built-in hallway should be used
+     */
+    private boolean loadMesh(File meshFile) {
+        BinaryMesh mesh;
+        try {
+            mesh = BinaryMesh.map(meshFile);
+        } catch (IOException e) {
+            System.out.println("Could not load mesh " + meshFile + ", drawing the built-in hallway: " + e);
+            return false;
+        }
+        mesh.upload(resources, vbo[0], vbo[1]);
+        hallwayIndexType = mesh.getIndexType();
+        hallwayDrawCount = mesh.getIndexCount();
+        mesh.getPositionMatrix(hallwayMeshMatrix);
+        return true;
+    }
+
+    /**
+     * Load a baked lightmap: its texture coordinates go into the hallway VAO
+     * as attribute 2 and its layers stay bound to unit 3 for the whole run.
+     * The corridor is drawn unlit if it can not be used.
+     */
+    private void loadLightmap(File directory) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        if (hallwayIndexType != 0) {
+            System.out.println("Lightmaps are baked for the built-in hallway, drawing " + MESH_FILE + " without it");
+            return;
+        }
+        Lightmap lightmap;
+        try {
+            lightmap = Lightmap.load(directory);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not load lightmap " + directory + ", drawing without it: " + e);
+            return;
+        }
+        if (lightmap.getLayers() != hallModelMatrices.length || lightmap.getTexCoords().length != ST_VALUES.length) {
+            System.out.println("Lightmap " + directory + " was baked for a different corridor, drawing without it");
+            return;
+        }
+
+        // Stays bound to the unit for good, the cache only tracks the unit's GL_TEXTURE_2D binding
+        stateCache.activeTexture(LIGHTMAP_UNIT);
+        lightmapTexture = lightmap.upload(resources);
+        stateCache.activeTexture(0);
+
+        int[] bufferIDs = new int[1];
+        gl.glGenBuffers(1, bufferIDs, 0);
+        lightmapBuffer = bufferIDs[0];
+        stateCache.bindVertexArray(vao[0]);
+        stateCache.bindArrayBuffer(lightmapBuffer);
+        FloatBuffer lightmapCoordinates = Buffers.newDirectFloatBuffer(lightmap.getTexCoords());
+        gl.glBufferData(GL_ARRAY_BUFFER, lightmapCoordinates.limit() * 4, lightmapCoordinates, GL_STATIC_DRAW);
+        resources.track(GpuResources.Category.BUFFER, lightmapBuffer, lightmapCoordinates.limit() * 4,
+                "corridor lightmap coordinates");
+        gl.glVertexAttribPointer(2, 2, GL_FLOAT, false, 0, 0);
+        gl.glEnableVertexAttribArray(2);
+    }
+
+    /**
+     * Load a hallway texture. A directory written by VirtualTextureTiler is
+     * streamed as a virtual texture, anything else is streamed in whole by the
+     * TextureStreamer, starting from a placeholder.
+     *
+     * @param textureFileName image file or tiled directory
+     * @param hallway         index into hallwayVirtualTextures
+     * @return texture id, 0 for virtual textures
+     */
+    private int loadHallwayTexture(String textureFileName, int hallway) {
+        if (VirtualTexture.isVirtualTexture(textureFileName)) {
+            try {
+                if (virtualTextures == null) {
+                    virtualTextures = new VirtualTextureSystem(renderingProgram, VERTEX_SHADER_FILE, resources,
+                            stateCache);
+                }
+                hallwayVirtualTextures[hallway] = virtualTextures.add(textureFileName);
+                return 0;
+            } catch (IOException e) {
+                System.out.println("Could not open virtual texture " + textureFileName + ": " + e);
+                super.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
+                return 0;
+            }
+        }
+        if (textureStreamer != null) {
+            return textureStreamer.request(textureFileName);
+        }
+        int textureID = loadTexture(textureFileName);
+        gl.glBindTexture(GL_TEXTURE_2D, textureID);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        return textureID;
+    }
+
+    /**
+     * Called by the TextureStreamer when a texture file can not be read.
+     */
+    private void textureLoadFailed(String textureFileName) {
+        System.out.println(
+                "Sorry your textures did not load correctly. \nPlease make sure they are spelled and the texture \nfiles are in the correct specified location");
+        super.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
     }
 
     /**
@@ -480,9 +870,13 @@ public class Corridor extends JFrame implements GLEventListener {
         GL4 gl = (GL4) GLContext.getCurrentGL();
         int finalTextureRef;
         Texture tex = null;
+        CorridorEvents.TextureLoadEvent loadEvent = new CorridorEvents.TextureLoadEvent();
+        loadEvent.begin();
+        loadEvent.file = textureFileName;
         try {
             tex = TextureIO.newTexture(new File(textureFileName), false);
         } catch (Exception e) {
+            loadEvent.commit();
             System.out.println(
                     "Sorry your textures did not load correctly. \nPlease make sure they are spelled and the texture \nfiles are in the correct specified location");
             super.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
@@ -499,6 +893,15 @@ public class Corridor extends JFrame implements GLEventListener {
             gl.glGetFloatv(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, anisoset, 0);
             gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, anisoset[0]);
         }
+
+        // RGBA8 base level plus roughly a third again for the mipmap chain
+        long textureBytes = (long) tex.getWidth() * tex.getHeight() * 4 * 4 / 3;
+        resources.track(GpuResources.Category.TEXTURE, finalTextureRef, textureBytes, textureFileName);
+        loadEvent.width = tex.getWidth();
+        loadEvent.height = tex.getHeight();
+        loadEvent.bytes = textureBytes;
+        loadEvent.success = true;
+        loadEvent.commit();
         return finalTextureRef;
     }
 }
\ No newline at end of file
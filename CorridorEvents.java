@@ -0,0 +1,98 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the corridor renderer. Record with
+ * -XX:StartFlightRecording and look under the "Corridor" category.
+ */
+public final class CorridorEvents {
+    // private constructor prevents instantiation (holder for event types only)
+    private CorridorEvents() {
+    }
+
+    /**
+     * Spans a single call to display(), from frame start to frame end.
+     */
+    @Name("corridor.Frame")
+    @Label("Frame")
+    @Category("Corridor")
+    @Description("One pass through display()")
+    @StackTrace(false)
+    public static class FrameEvent extends Event {
+        @Label("Frame Number")
+        public long frame;
+
+        @Label("Draw Calls")
+        public int drawCalls;
+    }
+
+    /**
+     * Spans decoding and uploading a texture file. Streamed textures are
+     * committed once fully uploaded, with the total time in streamTime.
+     */
+    @Name("corridor.TextureLoad")
+    @Label("Texture Load")
+    @Category("Corridor")
+    @StackTrace(false)
+    public static class TextureLoadEvent extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Estimated Size")
+        @DataAmount
+        public long bytes;
+
+        @Label("Success")
+        public boolean success;
+
+        @Label("Time To Full Resolution")
+        @Description("For streamed textures, time from request until every mip level was uploaded")
+        @Timespan
+        public long streamTime;
+    }
+
+    /**
+     * Spans reading and compiling a single shader stage.
+     */
+    @Name("corridor.ShaderCompile")
+    @Label("Shader Compile")
+    @Category("Corridor")
+    @StackTrace(false)
+    public static class ShaderCompileEvent extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Stage")
+        public String stage;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    /**
+     * Emitted when the window is resized.
+     */
+    @Name("corridor.Reshape")
+    @Label("Reshape")
+    @Category("Corridor")
+    @StackTrace(false)
+    public static class ReshapeEvent extends Event {
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+    }
+}
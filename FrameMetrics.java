@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * Counters for the render loop. Everything called from display() only writes
+ * primitive fields and a preallocated ring buffer, so recording a frame never
+ * allocates. Readers (the metrics endpoint) take a copy when they scrape.
+ */
+public class FrameMetrics {
+    private static final int HISTORY = 1024; // Frame times kept for percentiles (power of two)
+
+    private final long[] frameTimes = new long[HISTORY]; // Ring buffer of frame intervals in nanos
+    private volatile long frameCount; // Frame intervals recorded since start
+    private volatile long totalFrameNanos; // Sum of every recorded interval, not just the history
+    private long lastFrameStart;
+
+    private int frameDrawCalls; // Draw calls issued by the frame in progress
+    private volatile int lastFrameDrawCalls;
+    private volatile long totalDrawCalls;
+
+    private volatile int walkerCount;
+    private volatile long walkerUpdateNanos; // CPU time of the last crowd update
+
+    // GL state changes issued and skipped by GLStateCache
+    private volatile int lastFrameStateIssued, lastFrameStateSkipped;
+    private volatile long totalStateIssued, totalStateSkipped;
+
+    /**
+     * Mark the start of a frame. Records the interval since the previous frame.
+     *
+     * @param now System.nanoTime() at frame start
+     */
+    public void frameStart(long now) {
+        if (lastFrameStart != 0) {
+            long interval = now - lastFrameStart;
+            frameTimes[(int) (frameCount & (HISTORY - 1))] = interval;
+            totalFrameNanos += interval;
+            frameCount++;
+        }
+        lastFrameStart = now;
+        frameDrawCalls = 0;
+    }
+
+    /**
+     * Mark the end of a frame and publish the draw calls it issued.
+     */
+    public void frameEnd() {
+        lastFrameDrawCalls = frameDrawCalls;
+        totalDrawCalls += frameDrawCalls;
+    }
+
+    public void drawCall() {
+        frameDrawCalls++;
+    }
+
+    public void walkerUpdate(int count, long nanos) {
+        walkerCount = count;
+        walkerUpdateNanos = nanos;
+    }
+
+    /**
+     * Record the state calls a frame issued and the redundant ones it skipped.
+     */
+    public void stateCalls(int issued, int skipped) {
+        lastFrameStateIssued = issued;
+        lastFrameStateSkipped = skipped;
+        totalStateIssued += issued;
+        totalStateSkipped += skipped;
+    }
+
+    public int getFrameDrawCalls() {
+        return frameDrawCalls;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getTotalFrameNanos() {
+        return totalFrameNanos;
+    }
+
+    public int getLastFrameDrawCalls() {
+        return lastFrameDrawCalls;
+    }
+
+    public long getTotalDrawCalls() {
+        return totalDrawCalls;
+    }
+
+    public int getWalkerCount() {
+        return walkerCount;
+    }
+
+    public long getWalkerUpdateNanos() {
+        return walkerUpdateNanos;
+    }
+
+    public int getLastFrameStateIssued() {
+        return lastFrameStateIssued;
+    }
+
+    public int getLastFrameStateSkipped() {
+        return lastFrameStateSkipped;
+    }
+
+    public long getTotalStateIssued() {
+        return totalStateIssued;
+    }
+
+    public long getTotalStateSkipped() {
+        return totalStateSkipped;
+    }
+
+    /**
+     * Copy and sort the recorded frame intervals.
+     *
+     * @return sorted frame intervals in nanos
+     */
+    public long[] sortedFrameTimes() {
+        long count = frameCount;
+        int size = (int) Math.min(count, HISTORY);
+        long[] copy = Arrays.copyOf(frameTimes, size);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    /**
+     * @param sorted result of sortedFrameTimes()
+     * @param quantile value between 0 and 1
+     * @return frame interval in seconds at the given quantile
+     */
+    public static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        index = Math.max(0, Math.min(sorted.length - 1, index));
+        return sorted[index] / 1e9;
+    }
+
+    /**
+     * @param sorted result of sortedFrameTimes()
+     * @return frames per second averaged over the recorded history
+     */
+    public static double fps(long[] sorted) {
+        long sum = 0;
+        for (long t : sorted) {
+            sum += t;
+        }
+        return sum == 0 ? 0 : sorted.length * 1e9 / sum;
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.Arrays;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Shadow copy of the GL binding state the renderer touches every frame.
+ * Calls that would set state that is already current are skipped, and both
+ * issued and skipped calls are counted so batching wins can be measured.
+ *
+ * Code that changes this state directly must call one of the invalidate
+ * methods afterwards so the shadow copy does not go stale.
+ */
+public class GLStateCache {
+    private static final int TEXTURE_UNITS = 8;
+    private static final int UNKNOWN = -1;
+
+    private final GL4 gl;
+    private int program = UNKNOWN;
+    private int vertexArray = UNKNOWN;
+    private int arrayBuffer = UNKNOWN;
+    private int framebuffer = UNKNOWN;
+    private int activeUnit = UNKNOWN;
+    private final int[] textures2D = new int[TEXTURE_UNITS];
+    private float clearRed = Float.NaN, clearGreen, clearBlue, clearAlpha;
+
+    // Counts since beginFrame()
+    private int frameIssued, frameSkipped;
+
+    public GLStateCache(GL4 gl) {
+        this.gl = gl;
+        invalidate();
+    }
+
+    /**
+     * Forget everything, e.g. after another library has used the context.
+     */
+    public void invalidate() {
+        program = vertexArray = arrayBuffer = framebuffer = UNKNOWN;
+        invalidateTextures();
+        clearRed = Float.NaN;
+    }
+
+    /**
+     * Forget texture bindings and the active unit, after code outside the
+     * cache has bound textures.
+     */
+    public void invalidateTextures() {
+        activeUnit = UNKNOWN;
+        Arrays.fill(textures2D, UNKNOWN);
+    }
+
+    /**
+     * Forget the framebuffer binding, after code outside the cache has bound
+     * the read or draw framebuffer on its own.
+     */
+    public void invalidateFramebuffer() {
+        framebuffer = UNKNOWN;
+    }
+
+    /**
+     * Forget the array buffer binding, after code outside the cache has bound one.
+     */
+    public void invalidateArrayBuffer() {
+        arrayBuffer = UNKNOWN;
+    }
+
+    public void beginFrame() {
+        frameIssued = 0;
+        frameSkipped = 0;
+    }
+
+    public void useProgram(int id) {
+        if (program == id) {
+            skipped();
+            return;
+        }
+        program = id;
+        gl.glUseProgram(id);
+        issued();
+    }
+
+    public void bindVertexArray(int id) {
+        if (vertexArray == id) {
+            skipped();
+            return;
+        }
+        vertexArray = id;
+        gl.glBindVertexArray(id);
+        issued();
+    }
+
+    public void bindArrayBuffer(int id) {
+        if (arrayBuffer == id) {
+            skipped();
+            return;
+        }
+        arrayBuffer = id;
+        gl.glBindBuffer(GL_ARRAY_BUFFER, id);
+        issued();
+    }
+
+    public void bindFramebuffer(int id) {
+        if (framebuffer == id) {
+            skipped();
+            return;
+        }
+        framebuffer = id;
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, id);
+        issued();
+    }
+
+    /**
+     * Bind a 2D texture to a unit, switching the active unit only if needed.
+     *
+     * @param unit texture unit index, 0 for GL_TEXTURE0
+     */
+    public void bindTexture2D(int unit, int id) {
+        if (textures2D[unit] == id) {
+            skipped();
+            return;
+        }
+        activeTexture(unit);
+        textures2D[unit] = id;
+        gl.glBindTexture(GL_TEXTURE_2D, id);
+        issued();
+    }
+
+    public void activeTexture(int unit) {
+        if (activeUnit == unit) {
+            skipped();
+            return;
+        }
+        activeUnit = unit;
+        gl.glActiveTexture(GL_TEXTURE0 + unit);
+        issued();
+    }
+
+    public void clearColor(float red, float green, float blue, float alpha) {
+        if (clearRed == red && clearGreen == green && clearBlue == blue && clearAlpha == alpha) {
+            skipped();
+            return;
+        }
+        clearRed = red;
+        clearGreen = green;
+        clearBlue = blue;
+        clearAlpha = alpha;
+        gl.glClearColor(red, green, blue, alpha);
+        issued();
+    }
+
+    public int getProgram() {
+        return program;
+    }
+
+    public int getFrameIssued() {
+        return frameIssued;
+    }
+
+    public int getFrameSkipped() {
+        return frameSkipped;
+    }
+
+    private void issued() {
+        frameIssued++;
+    }
+
+    private void skipped() {
+        frameSkipped++;
+    }
+}
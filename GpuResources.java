@@ -0,0 +1,176 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.jogamp.opengl.*;
+
+/**
+ * Registry of every GL object the renderer creates, with an estimate of the
+ * memory behind it. Owners release their objects through the registry so the
+ * byte counts stay accurate, and releaseAll() deletes whatever is left when
+ * the context goes away.
+ *
+ * Run with -Dcorridor.debugGL=true to record where each object was created and
+ * have releaseAll() report anything its owner forgot to release as a leak.
+ */
+public class GpuResources {
+    public enum Category {
+        BUFFER, VERTEX_ARRAY, TEXTURE, RENDERBUFFER, FRAMEBUFFER, PROGRAM, SHADER;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final boolean DEBUG = Boolean.getBoolean("corridor.debugGL");
+
+    private static class Resource {
+        final Category category;
+        final int id;
+        final String label;
+        final Throwable allocationSite; // Only recorded in debug mode
+        long bytes;
+
+        Resource(Category category, int id, long bytes, String label) {
+            this.category = category;
+            this.id = id;
+            this.bytes = bytes;
+            this.label = label;
+            this.allocationSite = DEBUG ? new Throwable("Allocated here") : null;
+        }
+    }
+
+    private final Map<Long, Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicLongArray bytes = new AtomicLongArray(Category.values().length);
+    private final AtomicLongArray counts = new AtomicLongArray(Category.values().length);
+
+    /**
+     * Start tracking a GL object.
+     *
+     * @param bytes estimated memory behind the object
+     * @param label short description used in reports
+     * @return the id, for chaining
+     */
+    public int track(Category category, int id, long bytes, String label) {
+        Resource previous = resources.put(key(category, id), new Resource(category, id, bytes, label));
+        if (previous != null) {
+            // The driver handed out a live name again, the old entry was deleted behind our back
+            subtract(previous);
+            if (DEBUG) {
+                System.err.println("GL " + category.label() + " " + id + " (" + previous.label
+                        + ") was deleted without being released");
+            }
+        }
+        this.bytes.addAndGet(category.ordinal(), bytes);
+        counts.incrementAndGet(category.ordinal());
+        return id;
+    }
+
+    /**
+     * Update the size of a tracked object, e.g. after glBufferData.
+     */
+    public void resize(Category category, int id, long newBytes) {
+        Resource resource = resources.get(key(category, id));
+        if (resource != null) {
+            bytes.addAndGet(category.ordinal(), newBytes - resource.bytes);
+            resource.bytes = newBytes;
+        }
+    }
+
+    /**
+     * Delete a GL object and stop tracking it. Must be called with the
+     * context current.
+     */
+    public void release(Category category, int id) {
+        Resource resource = resources.remove(key(category, id));
+        if (resource != null) {
+            subtract(resource);
+        }
+        delete(category, id);
+    }
+
+    /**
+     * Delete everything still tracked. In debug mode every object found here
+     * is reported as leaked, since its owner should have released it first.
+     */
+    public void releaseAll() {
+        for (Resource resource : resources.values()) {
+            if (DEBUG) {
+                System.err.println("Leaked GL " + resource.category.label() + " " + resource.id + " ("
+                        + resource.label + ", " + resource.bytes + " bytes)");
+                resource.allocationSite.printStackTrace();
+            }
+            release(resource.category, resource.id);
+        }
+    }
+
+    public long getBytes(Category category) {
+        return bytes.get(category.ordinal());
+    }
+
+    public long getCount(Category category) {
+        return counts.get(category.ordinal());
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (Category category : Category.values()) {
+            total += getBytes(category);
+        }
+        return total;
+    }
+
+    public static boolean isDebug() {
+        return DEBUG;
+    }
+
+    /**
+     * @return live object counts and estimated bytes per category
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("GPU resources:\n");
+        for (Category category : Category.values()) {
+            sb.append(String.format("  %-13s %5d objects %12d bytes%n", category.label(), getCount(category),
+                    getBytes(category)));
+        }
+        sb.append(String.format("  %-13s %31d bytes", "total", getTotalBytes()));
+        return sb.toString();
+    }
+
+    private void subtract(Resource resource) {
+        bytes.addAndGet(resource.category.ordinal(), -resource.bytes);
+        counts.decrementAndGet(resource.category.ordinal());
+    }
+
+    private static void delete(Category category, int id) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int[] ids = { id };
+        switch (category) {
+            case BUFFER:
+                gl.glDeleteBuffers(1, ids, 0);
+                break;
+            case VERTEX_ARRAY:
+                gl.glDeleteVertexArrays(1, ids, 0);
+                break;
+            case TEXTURE:
+                gl.glDeleteTextures(1, ids, 0);
+                break;
+            case RENDERBUFFER:
+                gl.glDeleteRenderbuffers(1, ids, 0);
+                break;
+            case FRAMEBUFFER:
+                gl.glDeleteFramebuffers(1, ids, 0);
+                break;
+            case PROGRAM:
+                gl.glDeleteProgram(id);
+                break;
+            case SHADER:
+                gl.glDeleteShader(id);
+                break;
+        }
+    }
+
+    private static long key(Category category, int id) {
+        return ((long) category.ordinal() << 32) | (id & 0xFFFFFFFFL);
+    }
+}
@@ -37,6 +37,7 @@ public class Utils {
         gl.glAttachShader(vtgfprogram, gShader);
         gl.glAttachShader(vtgfprogram, fShader);
         finalizeProgram(vtgfprogram);
+        releaseShaders(vtgfprogram, vShader, tcShader, teShader, gShader, fShader);
         return vtgfprogram;
     }
 
@@ -52,6 +53,7 @@ public class Utils {
         gl.glAttachShader(vtfprogram, teShader);
         gl.glAttachShader(vtfprogram, fShader);
         finalizeProgram(vtfprogram);
+        releaseShaders(vtfprogram, vShader, tcShader, teShader, fShader);
         return vtfprogram;
     }
 
@@ -65,6 +67,7 @@ public class Utils {
         gl.glAttachShader(vgfprogram, gShader);
         gl.glAttachShader(vgfprogram, fShader);
         finalizeProgram(vgfprogram);
+        releaseShaders(vgfprogram, vShader, gShader, fShader);
         return vgfprogram;
     }
 
@@ -76,6 +79,7 @@ public class Utils {
         gl.glAttachShader(vfprogram, vShader);
         gl.glAttachShader(vfprogram, fShader);
         finalizeProgram(vfprogram);
+        releaseShaders(vfprogram, vShader, fShader);
         return vfprogram;
     }
 
@@ -85,6 +89,7 @@ public class Utils {
         int cprogram = gl.glCreateProgram();
         gl.glAttachShader(cprogram, cShader);
         finalizeProgram(cprogram);
+        releaseShaders(cprogram, cShader);
         return cprogram;
     }
 
@@ -101,8 +106,21 @@ public class Utils {
         return sprogram;
     }
 
+    // once linked the program keeps its own copy, so the shader objects can go
+    private static void releaseShaders(int program, int... shaders) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        for (int shader : shaders) {
+            gl.glDetachShader(program, shader);
+            gl.glDeleteShader(shader);
+        }
+    }
+
     private static int prepareShader(int shaderTYPE, String shader) {
         GL4 gl = (GL4) GLContext.getCurrentGL();
+        CorridorEvents.ShaderCompileEvent compileEvent = new CorridorEvents.ShaderCompileEvent();
+        compileEvent.begin();
+        compileEvent.file = shader;
+        compileEvent.stage = shaderStageName(shaderTYPE);
         int[] shaderCompiled = new int[1];
         String shaderSource[] = readShaderSource(shader);
         int shaderRef = gl.glCreateShader(shaderTYPE);
@@ -110,25 +128,35 @@ public class Utils {
         gl.glCompileShader(shaderRef);
         checkOpenGLError();
         gl.glGetShaderiv(shaderRef, GL_COMPILE_STATUS, shaderCompiled, 0);
+        compileEvent.success = shaderCompiled[0] == 1;
+        compileEvent.commit();
         if (shaderCompiled[0] != 1) {
-            if (shaderTYPE == GL_VERTEX_SHADER)
-                System.out.print("Vertex ");
-            if (shaderTYPE == GL_TESS_CONTROL_SHADER)
-                System.out.print("Tess Control ");
-            if (shaderTYPE == GL_TESS_EVALUATION_SHADER)
-                System.out.print("Tess Eval ");
-            if (shaderTYPE == GL_GEOMETRY_SHADER)
-                System.out.print("Geometry ");
-            if (shaderTYPE == GL_FRAGMENT_SHADER)
-                System.out.print("Fragment ");
-            if (shaderTYPE == GL_COMPUTE_SHADER)
-                System.out.print("Compute ");
+            System.out.print(compileEvent.stage + " ");
             System.out.println("shader compilation error.");
             printShaderLog(shaderRef);
         }
         return shaderRef;
     }
 
+    private static String shaderStageName(int shaderTYPE) {
+        switch (shaderTYPE) {
+            case GL_VERTEX_SHADER:
+                return "Vertex";
+            case GL_TESS_CONTROL_SHADER:
+                return "Tess Control";
+            case GL_TESS_EVALUATION_SHADER:
+                return "Tess Eval";
+            case GL_GEOMETRY_SHADER:
+                return "Geometry";
+            case GL_FRAGMENT_SHADER:
+                return "Fragment";
+            case GL_COMPUTE_SHADER:
+                return "Compute";
+            default:
+                return "Unknown";
+        }
+    }
+
     private static String[] readShaderSource(String filename) {
         ArrayList<String> lines = new ArrayList<String>();
         try {
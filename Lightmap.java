@@ -0,0 +1,97 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * A lightmap baked by LightmapBaker: one layer per hallway and the lightmap
+ * texture coordinates of the hallway mesh. Loaded into a 2D array texture
+ * so every hallway is lit from the same binding, picking its layer with the
+ * lightmapLayer uniform.
+ */
+public class Lightmap {
+    private final int width, height, layers;
+    private final float[] texCoords;
+    private final ByteBuffer texels; // RGBA, layer after layer, bottom row first
+
+    private Lightmap(int width, int height, int layers, float[] texCoords, ByteBuffer texels) {
+        this.width = width;
+        this.height = height;
+        this.layers = layers;
+        this.texCoords = texCoords;
+        this.texels = texels;
+    }
+
+    /**
+     * Read a directory written by LightmapBaker.
+     */
+    public static Lightmap load(File directory) throws IOException {
+        Properties info = LightmapBaker.readInfo(directory);
+        int width = Integer.parseInt(info.getProperty("width"));
+        int height = Integer.parseInt(info.getProperty("height"));
+        int layers = Integer.parseInt(info.getProperty("layers"));
+        if (Float.parseFloat(info.getProperty("range")) != LightmapBaker.RANGE) {
+            throw new IOException("Baked with a different range, bake it again");
+        }
+        String[] coordinates = info.getProperty("texCoords").trim().split("\\s+");
+        float[] texCoords = new float[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            texCoords[i] = Float.parseFloat(coordinates[i]);
+        }
+
+        ByteBuffer texels = Buffers.newDirectByteBuffer(width * height * layers * 4);
+        int[] row = new int[width];
+        for (int layer = 0; layer < layers; layer++) {
+            File layerFile = LightmapBaker.layerFile(directory, layer);
+            BufferedImage image = ImageIO.read(layerFile);
+            if (image == null || image.getWidth() != width || image.getHeight() != height) {
+                throw new IOException("Unreadable layer " + layerFile);
+            }
+            for (int y = height - 1; y >= 0; y--) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int argb : row) {
+                    texels.put((byte) (argb >>> 16)).put((byte) (argb >>> 8)).put((byte) argb).put((byte) 0xFF);
+                }
+            }
+        }
+        texels.flip();
+        return new Lightmap(width, height, layers, texCoords, texels);
+    }
+
+    public int getLayers() {
+        return layers;
+    }
+
+    /**
+     * @return two lightmap coordinates per mesh vertex
+     */
+    public float[] getTexCoords() {
+        return texCoords;
+    }
+
+    /**
+     * Create the array texture and leave it bound to GL_TEXTURE_2D_ARRAY on
+     * the active unit.
+     */
+    public int upload(GpuResources resources) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int[] textureIDs = new int[1];
+        gl.glGenTextures(1, textureIDs, 0);
+        resources.track(GpuResources.Category.TEXTURE, textureIDs[0], texels.limit(), "lightmap");
+        gl.glBindTexture(GL_TEXTURE_2D_ARRAY, textureIDs[0]);
+        gl.glTexStorage3D(GL_TEXTURE_2D_ARRAY, 1, GL_RGBA8, width, height, layers);
+        gl.glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, width, height, layers, GL_RGBA, GL_UNSIGNED_BYTE, texels);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        return textureIDs[0];
+    }
+}
@@ -0,0 +1,684 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Offline tool that bakes ambient occlusion and static lights over the
+ * hallways into a lightmap read by Lightmap. The result is a directory that
+ * can be passed to Corridor with -Dcorridor.lightmap=DIRECTORY.
+ *
+ * Usage: java LightmapBaker output.lightmap [samples per texel]
+ *
+ * Every hallway shares the TRAPEZOID_SECTION mesh, so its faces are packed
+ * once into lightmap texture coordinates and each hallway gets its own layer,
+ * in hallModelMatrices order. Texels are ray traced on the CPU against every
+ * hallway, one row per fork/join task.
+ *
+ * Rebakes are incremental: each layer is stored with a checksum of everything
+ * that can reach it (settings, mesh, and the placement of every hallway within
+ * AO or light range), and layers whose checksum still matches are kept.
+ */
+public class LightmapBaker {
+    public static final String INFO_FILE = "lightmap.properties";
+    public static final float RANGE = 2.0f; // Texels store light / RANGE, so a lit wall can be up to twice as bright
+    private static final int VERSION = 1; // Bump when the baking itself changes, forces a full rebake
+
+    // Packing
+    private static final float TEXELS_PER_UNIT = 50f; // Per mesh unit, a hallway is 10 units long
+    private static final int PADDING = 2; // Texels around each chart, filled by dilation
+
+    // Lighting, distances are in world units
+    private static final int DEFAULT_SAMPLES = 64;
+    private static final float AO_DISTANCE = 60f;
+    private static final float AMBIENT = 0.4f;
+    private static final float[] LIGHT_POSITIONS = { -3f, 0.4f, 0f, 0f, 0.4f, 0f, 3f, 0.4f, 0f }; // Mesh units, per hallway
+    private static final float[] LIGHT_COLOR = { 1.0f, 0.9f, 0.75f };
+    private static final float LIGHT_RADIUS = 250f; // Lights fall off to nothing at this distance
+    private static final float RAY_OFFSET = 0.05f; // Keeps rays from hitting the surface they start on
+
+    private final float[] mesh;
+    private final Matrix4f[] modelMatrices;
+    private final int samples;
+
+    // Packed charts, shared by every layer
+    private final List<Chart> charts = new ArrayList<>();
+    private int width, height;
+    private int[] chartOfTexel; // Chart index per texel, -1 outside every chart
+    private float[] texCoords; // Lightmap coordinates per mesh vertex
+
+    // World space scene
+    private final float[][] segmentTriangles; // 9 floats per triangle
+    private final float[][] segmentBounds; // min xyz, max xyz
+    private final float[] lights; // xyz per light
+
+    /**
+     * Triangles of the mesh that share a plane, laid out flat in the atlas.
+     */
+    private static class Chart {
+        final List<Integer> triangles = new ArrayList<>();
+        final float[] origin, normal;
+        float[] uAxis, vAxis; // Plane basis in mesh units
+        float minU, minV, maxU, maxV;
+        float[] planeCorners; // u, v of each triangle corner, 6 floats per triangle
+        int x, y, width, height; // Atlas rectangle in texels, padding included
+
+        Chart(float[] origin, float[] normal) {
+            this.origin = origin;
+            this.normal = normal;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java LightmapBaker <output directory> [samples per texel]");
+            return;
+        }
+        try {
+            int samples = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SAMPLES;
+            if (samples < 1) {
+                throw new IllegalArgumentException("Samples must be at least 1");
+            }
+            Matrix4f[] modelMatrices = new Matrix4f[4];
+            for (int i = 0; i < modelMatrices.length; i++) {
+                modelMatrices[i] = new Matrix4f();
+            }
+            Corridor.setHallModelMatrices(modelMatrices);
+            new LightmapBaker(Corridor.TRAPEZOID_SECTION, modelMatrices, samples).bake(new File(args[0]));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not bake " + args[0] + ": " + e);
+        }
+    }
+
+    /**
+     * @param mesh          GL_TRIANGLES positions, 9 floats per triangle
+     * @param modelMatrices one per segment, each a layer of the lightmap
+     * @param samples       ambient occlusion rays per texel
+     */
+    public LightmapBaker(float[] mesh, Matrix4f[] modelMatrices, int samples) {
+        this.mesh = mesh;
+        this.modelMatrices = modelMatrices;
+        this.samples = samples;
+        pack();
+
+        segmentTriangles = new float[modelMatrices.length][];
+        segmentBounds = new float[modelMatrices.length][];
+        lights = new float[modelMatrices.length * LIGHT_POSITIONS.length];
+        Vector3f point = new Vector3f();
+        for (int s = 0; s < modelMatrices.length; s++) {
+            float[] triangles = new float[mesh.length];
+            float[] bounds = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE,
+                    -Float.MAX_VALUE, -Float.MAX_VALUE };
+            for (int i = 0; i < mesh.length; i += 3) {
+                modelMatrices[s].transformPosition(point.set(mesh[i], mesh[i + 1], mesh[i + 2]));
+                triangles[i] = point.x;
+                triangles[i + 1] = point.y;
+                triangles[i + 2] = point.z;
+                for (int axis = 0; axis < 3; axis++) {
+                    bounds[axis] = Math.min(bounds[axis], triangles[i + axis]);
+                    bounds[axis + 3] = Math.max(bounds[axis + 3], triangles[i + axis]);
+                }
+            }
+            segmentTriangles[s] = triangles;
+            segmentBounds[s] = bounds;
+            for (int i = 0; i < LIGHT_POSITIONS.length; i += 3) {
+                modelMatrices[s].transformPosition(
+                        point.set(LIGHT_POSITIONS[i], LIGHT_POSITIONS[i + 1], LIGHT_POSITIONS[i + 2]));
+                lights[s * LIGHT_POSITIONS.length + i] = point.x;
+                lights[s * LIGHT_POSITIONS.length + i + 1] = point.y;
+                lights[s * LIGHT_POSITIONS.length + i + 2] = point.z;
+            }
+        }
+    }
+
+    /**
+     * Read the description written next to the layers.
+     */
+    public static Properties readInfo(File directory) throws IOException {
+        Properties info = new Properties();
+        try (Reader reader = new FileReader(new File(directory, INFO_FILE))) {
+            info.load(reader);
+        }
+        return info;
+    }
+
+    /**
+     * @return the image holding one layer
+     */
+    public static File layerFile(File directory, int layer) {
+        return new File(directory, "layer" + layer + ".png");
+    }
+
+    /**
+     * Bake every layer whose inputs changed since the last bake into the
+     * directory, then rewrite the description.
+     */
+    public void bake(File outputDirectory) throws IOException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Could not create " + outputDirectory);
+        }
+        Properties previous = new File(outputDirectory, INFO_FILE).isFile() ? readInfo(outputDirectory)
+                : new Properties();
+
+        Properties info = new Properties();
+        info.setProperty("width", Integer.toString(width));
+        info.setProperty("height", Integer.toString(height));
+        info.setProperty("layers", Integer.toString(modelMatrices.length));
+        info.setProperty("range", Float.toString(RANGE));
+        StringBuilder coordinates = new StringBuilder();
+        for (float coordinate : texCoords) {
+            coordinates.append(coordinates.length() == 0 ? "" : " ").append(coordinate);
+        }
+        info.setProperty("texCoords", coordinates.toString());
+
+        for (int layer = 0; layer < modelMatrices.length; layer++) {
+            String inputs = Long.toHexString(inputChecksum(layer));
+            info.setProperty("inputs." + layer, inputs);
+            if (inputs.equals(previous.getProperty("inputs." + layer))
+                    && layerFile(outputDirectory, layer).isFile()) {
+                System.out.println("Layer " + layer + " is up to date");
+                continue;
+            }
+            long start = System.nanoTime();
+            ImageIO.write(bakeLayer(layer), "png", layerFile(outputDirectory, layer));
+            System.out.println("Baked layer " + layer + " (" + width + "x" + height + ", " + samples
+                    + " samples) in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+
+        // Written last, an interrupted bake leaves old checksums and is redone next time
+        try (Writer writer = new FileWriter(new File(outputDirectory, INFO_FILE))) {
+            info.store(writer, "Corridor lightmap");
+        }
+    }
+
+    /**
+     * Split the mesh into planar charts and shelf pack them into the smallest
+     * power of two atlas that holds them.
+     */
+    private void pack() {
+        for (int t = 0; t < mesh.length / 9; t++) {
+            float[] normal = triangleNormal(mesh, t * 9);
+            Chart chart = charts.isEmpty() ? null : charts.get(charts.size() - 1);
+            // The mesh lists each face's triangles together, so only the last chart can match
+            if (chart == null || dot(chart.normal, normal) < 0.999f
+                    || Math.abs(dot(chart.normal, subtract(mesh, t * 9, chart.origin))) > 1e-4f) {
+                chart = new Chart(new float[] { mesh[t * 9], mesh[t * 9 + 1], mesh[t * 9 + 2] }, normal);
+                charts.add(chart);
+            }
+            chart.triangles.add(t);
+        }
+
+        for (Chart chart : charts) {
+            chooseAxes(chart);
+            chart.planeCorners = new float[chart.triangles.size() * 6];
+            for (int i = 0; i < chart.triangles.size(); i++) {
+                for (int corner = 0; corner < 3; corner++) {
+                    float[] offset = subtract(mesh, chart.triangles.get(i) * 9 + corner * 3, chart.origin);
+                    chart.planeCorners[i * 6 + corner * 2] = dot(offset, chart.uAxis);
+                    chart.planeCorners[i * 6 + corner * 2 + 1] = dot(offset, chart.vAxis);
+                }
+            }
+            chart.width = (int) Math.ceil((chart.maxU - chart.minU) * TEXELS_PER_UNIT) + 2 * PADDING;
+            chart.height = (int) Math.ceil((chart.maxV - chart.minV) * TEXELS_PER_UNIT) + 2 * PADDING;
+        }
+
+        List<Chart> byHeight = new ArrayList<>(charts);
+        byHeight.sort((a, b) -> b.height - a.height);
+        width = 1;
+        for (Chart chart : charts) {
+            while (width < chart.width) {
+                width *= 2;
+            }
+        }
+        int shelfX = 0, shelfY = 0, shelfHeight = 0;
+        for (Chart chart : byHeight) {
+            if (shelfX + chart.width > width) {
+                shelfY += shelfHeight;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            chart.x = shelfX;
+            chart.y = shelfY;
+            shelfX += chart.width;
+            shelfHeight = Math.max(shelfHeight, chart.height);
+        }
+        height = 1;
+        while (height < shelfY + shelfHeight) {
+            height *= 2;
+        }
+
+        chartOfTexel = new int[width * height];
+        Arrays.fill(chartOfTexel, -1);
+        for (int c = 0; c < charts.size(); c++) {
+            Chart chart = charts.get(c);
+            for (int y = chart.y; y < chart.y + chart.height; y++) {
+                Arrays.fill(chartOfTexel, y * width + chart.x, y * width + chart.x + chart.width, c);
+            }
+        }
+
+        texCoords = new float[mesh.length / 3 * 2];
+        for (Chart chart : charts) {
+            for (int t : chart.triangles) {
+                for (int corner = 0; corner < 3; corner++) {
+                    int vertex = t * 3 + corner;
+                    float[] offset = subtract(mesh, vertex * 3, chart.origin);
+                    texCoords[vertex * 2] = (chart.x + PADDING
+                            + (dot(offset, chart.uAxis) - chart.minU) * TEXELS_PER_UNIT) / width;
+                    texCoords[vertex * 2 + 1] = (chart.y + PADDING
+                            + (dot(offset, chart.vAxis) - chart.minV) * TEXELS_PER_UNIT) / height;
+                }
+            }
+        }
+    }
+
+    /**
+     * Line the chart's u axis up with whichever of its edges gives the
+     * smallest bounding rectangle, so rectangular faces pack without waste,
+     * and make u the longer side.
+     */
+    private void chooseAxes(Chart chart) {
+        float bestArea = Float.MAX_VALUE;
+        for (int t : chart.triangles) {
+            for (int corner = 0; corner < 3; corner++) {
+                int from = t * 9 + corner * 3;
+                int to = t * 9 + (corner + 1) % 3 * 3;
+                float[] edge = { mesh[to] - mesh[from], mesh[to + 1] - mesh[from + 1], mesh[to + 2] - mesh[from + 2] };
+                float length = (float) Math.sqrt(dot(edge, edge));
+                float[] uAxis = { edge[0] / length, edge[1] / length, edge[2] / length };
+                float[] vAxis = { chart.normal[1] * uAxis[2] - chart.normal[2] * uAxis[1],
+                        chart.normal[2] * uAxis[0] - chart.normal[0] * uAxis[2],
+                        chart.normal[0] * uAxis[1] - chart.normal[1] * uAxis[0] };
+                float[] extents = planeExtents(chart, uAxis, vAxis);
+                float area = (extents[1] - extents[0]) * (extents[3] - extents[2]);
+                if (area < bestArea - 1e-4f) {
+                    bestArea = area;
+                    chart.uAxis = uAxis;
+                    chart.vAxis = vAxis;
+                }
+            }
+        }
+        float[] extents = planeExtents(chart, chart.uAxis, chart.vAxis);
+        if (extents[3] - extents[2] > extents[1] - extents[0]) {
+            // Rotate a quarter turn, keeping u x v along the normal
+            float[] uAxis = chart.vAxis;
+            chart.vAxis = new float[] { -chart.uAxis[0], -chart.uAxis[1], -chart.uAxis[2] };
+            chart.uAxis = uAxis;
+            extents = planeExtents(chart, chart.uAxis, chart.vAxis);
+        }
+        chart.minU = extents[0];
+        chart.maxU = extents[1];
+        chart.minV = extents[2];
+        chart.maxV = extents[3];
+    }
+
+    /**
+     * @return min u, max u, min v, max v of the chart's corners
+     */
+    private float[] planeExtents(Chart chart, float[] uAxis, float[] vAxis) {
+        float[] extents = { Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int t : chart.triangles) {
+            for (int corner = 0; corner < 3; corner++) {
+                float[] offset = subtract(mesh, t * 9 + corner * 3, chart.origin);
+                float u = dot(offset, uAxis);
+                float v = dot(offset, vAxis);
+                extents[0] = Math.min(extents[0], u);
+                extents[1] = Math.max(extents[1], u);
+                extents[2] = Math.min(extents[2], v);
+                extents[3] = Math.max(extents[3], v);
+            }
+        }
+        return extents;
+    }
+
+    /**
+     * Checksum of everything a layer's texels depend on. Hallways further
+     * than AO_DISTANCE and LIGHT_RADIUS away can neither shadow it nor light
+     * it, so moving them leaves the layer alone.
+     */
+    private long inputChecksum(int layer) {
+        CRC32 crc = new CRC32();
+        float[] settings = { VERSION, width, height, samples, TEXELS_PER_UNIT, PADDING, AO_DISTANCE, AMBIENT,
+                LIGHT_RADIUS, RAY_OFFSET, RANGE };
+        update(crc, settings);
+        update(crc, LIGHT_POSITIONS);
+        update(crc, LIGHT_COLOR);
+        update(crc, mesh);
+        float reach = Math.max(AO_DISTANCE, LIGHT_RADIUS);
+        float[] matrix = new float[16];
+        for (int s = 0; s < modelMatrices.length; s++) {
+            if (s == layer || boundsWithin(segmentBounds[layer], segmentBounds[s], reach)) {
+                crc.update(s);
+                update(crc, modelMatrices[s].get(matrix));
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, float[] values) {
+        for (float value : values) {
+            int bits = Float.floatToIntBits(value);
+            crc.update(bits >>> 24);
+            crc.update(bits >>> 16);
+            crc.update(bits >>> 8);
+            crc.update(bits);
+        }
+    }
+
+    private static boolean boundsWithin(float[] a, float[] b, float distance) {
+        for (int axis = 0; axis < 3; axis++) {
+            if (a[axis] - distance > b[axis + 3] || b[axis] - distance > a[axis + 3]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ray trace every texel of one layer in parallel, then dilate the charts
+     * into their padding so bilinear filtering at the edges stays lit.
+     */
+    private BufferedImage bakeLayer(int layer) {
+        float[] light = new float[width * height * 3];
+        boolean[] covered = new boolean[width * height];
+        ForkJoinPool.commonPool().invoke(new RowTask(layer, 0, height, light, covered));
+        dilate(light, covered);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 3;
+                image.setRGB(x, height - 1 - y, (encode(light[i]) << 16) | (encode(light[i + 1]) << 8)
+                        | encode(light[i + 2]));
+            }
+        }
+        return image;
+    }
+
+    private static int encode(float light) {
+        return (int) (Math.max(0f, Math.min(1f, light / RANGE)) * 255f + 0.5f);
+    }
+
+    /**
+     * Bakes a range of atlas rows, splitting in half until it is small enough.
+     */
+    private class RowTask extends RecursiveAction {
+        private static final int ROWS_PER_TASK = 4;
+        private final int layer, from, to;
+        private final float[] light;
+        private final boolean[] covered;
+
+        RowTask(int layer, int from, int to, float[] light, boolean[] covered) {
+            this.layer = layer;
+            this.from = from;
+            this.to = to;
+            this.light = light;
+            this.covered = covered;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowTask(layer, from, middle, light, covered),
+                        new RowTask(layer, middle, to, light, covered));
+                return;
+            }
+            Vector3f position = new Vector3f();
+            Vector3f normal = new Vector3f();
+            for (int y = from; y < to; y++) {
+                for (int x = 0; x < width; x++) {
+                    int texel = y * width + x;
+                    if (chartOfTexel[texel] >= 0 && texelSurface(charts.get(chartOfTexel[texel]), x, y, layer,
+                            position, normal)) {
+                        shade(texel, position, normal, light);
+                        covered[texel] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the world position and normal under a texel centre.
+     *
+     * @return false when the centre lies in the chart's rectangle but outside
+     *         its triangles
+     */
+    private boolean texelSurface(Chart chart, int x, int y, int layer, Vector3f position, Vector3f normal) {
+        float u = (x + 0.5f - chart.x - PADDING) / TEXELS_PER_UNIT + chart.minU;
+        float v = (y + 0.5f - chart.y - PADDING) / TEXELS_PER_UNIT + chart.minV;
+        for (int i = 0; i < chart.triangles.size(); i++) {
+            if (insideTriangle(chart.planeCorners, i * 6, u, v)) {
+                position.set(chart.origin[0] + u * chart.uAxis[0] + v * chart.vAxis[0],
+                        chart.origin[1] + u * chart.uAxis[1] + v * chart.vAxis[1],
+                        chart.origin[2] + u * chart.uAxis[2] + v * chart.vAxis[2]);
+                modelMatrices[layer].transformPosition(position);
+                modelMatrices[layer].transformDirection(normal.set(chart.normal[0], chart.normal[1], chart.normal[2]))
+                        .normalize();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean insideTriangle(float[] corners, int i, float u, float v) {
+        float area = (corners[i + 2] - corners[i]) * (corners[i + 5] - corners[i + 1])
+                - (corners[i + 4] - corners[i]) * (corners[i + 3] - corners[i + 1]);
+        float w0 = (corners[i + 2] - u) * (corners[i + 5] - v) - (corners[i + 4] - u) * (corners[i + 3] - v);
+        float w1 = (corners[i + 4] - u) * (corners[i + 1] - v) - (corners[i] - u) * (corners[i + 5] - v);
+        float w2 = area - w0 - w1;
+        return area > 0f ? w0 >= 0f && w1 >= 0f && w2 >= 0f : w0 <= 0f && w1 <= 0f && w2 <= 0f;
+    }
+
+    /**
+     * Ambient light scaled by how much of the hemisphere is open, plus every
+     * static light in range that the texel can see.
+     */
+    private void shade(int texel, Vector3f position, Vector3f normal, float[] light) {
+        float ox = position.x + normal.x * RAY_OFFSET;
+        float oy = position.y + normal.y * RAY_OFFSET;
+        float oz = position.z + normal.z * RAY_OFFSET;
+
+        // Tangent frame around the normal for the hemisphere samples
+        float ax = Math.abs(normal.x) > 0.9f ? 0f : 1f;
+        float ay = 1f - ax;
+        float tx = ay * normal.z, ty = -ax * normal.z, tz = ax * normal.y - ay * normal.x;
+        float tangentLength = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+        tx /= tangentLength;
+        ty /= tangentLength;
+        tz /= tangentLength;
+        float bx = normal.y * tz - normal.z * ty;
+        float by = normal.z * tx - normal.x * tz;
+        float bz = normal.x * ty - normal.y * tx;
+
+        // Cosine weighted Hammersley points, shifted per texel so neighbours do not band
+        int hash = mix(texel);
+        float shiftU = (hash & 0xFFFF) / 65536f;
+        float shiftV = (hash >>> 16) / 65536f;
+        int open = 0;
+        for (int i = 0; i < samples; i++) {
+            float u = (i + 0.5f) / samples + shiftU;
+            float v = (Integer.reverse(i) & 0xFFFFFFFFL) / 4294967296f + shiftV;
+            u -= (int) u;
+            v -= (int) v;
+            float radius = (float) Math.sqrt(u);
+            float angle = (float) (2.0 * Math.PI * v);
+            float x = radius * (float) Math.cos(angle);
+            float y = radius * (float) Math.sin(angle);
+            float z = (float) Math.sqrt(Math.max(0f, 1f - u));
+            if (!occluded(ox, oy, oz, x * tx + y * bx + z * normal.x, x * ty + y * by + z * normal.y,
+                    x * tz + y * bz + z * normal.z, AO_DISTANCE)) {
+                open++;
+            }
+        }
+        float ambient = AMBIENT * open / samples;
+        float red = ambient, green = ambient, blue = ambient;
+
+        for (int l = 0; l < lights.length; l += 3) {
+            float lx = lights[l] - position.x, ly = lights[l + 1] - position.y, lz = lights[l + 2] - position.z;
+            float distance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+            if (distance >= LIGHT_RADIUS || distance == 0f) {
+                continue;
+            }
+            lx /= distance;
+            ly /= distance;
+            lz /= distance;
+            float cosine = lx * normal.x + ly * normal.y + lz * normal.z;
+            if (cosine <= 0f || occluded(ox, oy, oz, lx, ly, lz, distance - RAY_OFFSET)) {
+                continue;
+            }
+            float falloff = 1f - (distance * distance) / (LIGHT_RADIUS * LIGHT_RADIUS);
+            float intensity = falloff * falloff * cosine;
+            red += LIGHT_COLOR[0] * intensity;
+            green += LIGHT_COLOR[1] * intensity;
+            blue += LIGHT_COLOR[2] * intensity;
+        }
+        light[texel * 3] = red;
+        light[texel * 3 + 1] = green;
+        light[texel * 3 + 2] = blue;
+    }
+
+    private static int mix(int value) {
+        value ^= value >>> 16;
+        value *= 0x7FEB352D;
+        value ^= value >>> 15;
+        value *= 0x846CA68B;
+        return value ^ (value >>> 16);
+    }
+
+    /**
+     * Whether anything lies along the ray closer than maxDistance. Each
+     * hallway's bounds are tested before its triangles; the triangles are
+     * two sided.
+     */
+    private boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance) {
+        for (int s = 0; s < segmentTriangles.length; s++) {
+            if (!hitsBounds(segmentBounds[s], ox, oy, oz, dx, dy, dz, maxDistance)) {
+                continue;
+            }
+            float[] t = segmentTriangles[s];
+            for (int k = 0; k < t.length; k += 9) {
+                float e1x = t[k + 3] - t[k], e1y = t[k + 4] - t[k + 1], e1z = t[k + 5] - t[k + 2];
+                float e2x = t[k + 6] - t[k], e2y = t[k + 7] - t[k + 1], e2z = t[k + 8] - t[k + 2];
+                float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+                float determinant = e1x * px + e1y * py + e1z * pz;
+                if (Math.abs(determinant) < 1e-8f) {
+                    continue; // Parallel to the triangle
+                }
+                float inverse = 1f / determinant;
+                float sx = ox - t[k], sy = oy - t[k + 1], sz = oz - t[k + 2];
+                float u = (sx * px + sy * py + sz * pz) * inverse;
+                if (u < 0f || u > 1f) {
+                    continue;
+                }
+                float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+                float v = (dx * qx + dy * qy + dz * qz) * inverse;
+                if (v < 0f || u + v > 1f) {
+                    continue;
+                }
+                float distance = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+                if (distance > 0f && distance < maxDistance) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hitsBounds(float[] bounds, float ox, float oy, float oz, float dx, float dy, float dz,
+            float maxDistance) {
+        float near = 0f, far = maxDistance;
+        float[] origin = { ox, oy, oz };
+        float[] direction = { dx, dy, dz };
+        for (int axis = 0; axis < 3; axis++) {
+            if (Math.abs(direction[axis]) < 1e-9f) {
+                if (origin[axis] < bounds[axis] || origin[axis] > bounds[axis + 3]) {
+                    return false;
+                }
+                continue;
+            }
+            float t0 = (bounds[axis] - origin[axis]) / direction[axis];
+            float t1 = (bounds[axis + 3] - origin[axis]) / direction[axis];
+            near = Math.max(near, Math.min(t0, t1));
+            far = Math.min(far, Math.max(t0, t1));
+            if (near > far) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Grow every chart outwards by averaging covered neighbours into
+     * uncovered texels, one ring per pass.
+     */
+    private void dilate(float[] light, boolean[] covered) {
+        for (int pass = 0; pass <= PADDING; pass++) {
+            boolean[] next = covered.clone();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int texel = y * width + x;
+                    if (covered[texel]) {
+                        continue;
+                    }
+                    float red = 0f, green = 0f, blue = 0f;
+                    int count = 0;
+                    for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                        for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                            int neighbour = ny * width + nx;
+                            if (covered[neighbour]) {
+                                red += light[neighbour * 3];
+                                green += light[neighbour * 3 + 1];
+                                blue += light[neighbour * 3 + 2];
+                                count++;
+                            }
+                        }
+                    }
+                    if (count > 0) {
+                        light[texel * 3] = red / count;
+                        light[texel * 3 + 1] = green / count;
+                        light[texel * 3 + 2] = blue / count;
+                        next[texel] = true;
+                    }
+                }
+            }
+            System.arraycopy(next, 0, covered, 0, covered.length);
+        }
+    }
+
+    private static float[] triangleNormal(float[] mesh, int triangle) {
+        float e1x = mesh[triangle + 3] - mesh[triangle], e1y = mesh[triangle + 4] - mesh[triangle + 1],
+                e1z = mesh[triangle + 5] - mesh[triangle + 2];
+        float e2x = mesh[triangle + 6] - mesh[triangle], e2y = mesh[triangle + 7] - mesh[triangle + 1],
+                e2z = mesh[triangle + 8] - mesh[triangle + 2];
+        float[] normal = { e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x }; // Front face side
+        float length = (float) Math.sqrt(dot(normal, normal));
+        normal[0] /= length;
+        normal[1] /= length;
+        normal[2] /= length;
+        return normal;
+    }
+
+    private static float[] subtract(float[] points, int point, float[] origin) {
+        return new float[] { points[point] - origin[0], points[point + 1] - origin[1], points[point + 2] - origin[2] };
+    }
+
+    private static float dot(float[] a, float[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+}
@@ -0,0 +1,560 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline tool that converts an OBJ or glTF 2.0 model into the binary mesh
+ * format read by BinaryMesh. The result can be passed to Corridor with
+ * -Dcorridor.mesh=FILE in place of the built-in hallway section.
+ *
+ * Usage: java MeshConverter model.obj|model.gltf|model.glb output.mesh
+ * [--quantize] [--half-uvs]
+ *
+ * Only positions and the first set of texture coordinates are kept, and
+ * vertices sharing both are merged. From glTF every triangle primitive of
+ * every mesh is taken in mesh space, node transforms are not applied.
+ *
+ * --quantize stores positions as 16 bit fractions of the bounds, precise to
+ * about 1/65000 of the model's size along each axis. --half-uvs
+ * stores texture coordinates as half floats, which lose precision quickly
+ * past 1 and should not be used for coordinates that repeat a texture many
+ * times.
+ */
+public class MeshConverter {
+    private final List<float[]> vertices = new ArrayList<>(); // x, y, z, s, t
+    private final Map<String, Integer> vertexIndices = new HashMap<>();
+    private final List<Integer> indices = new ArrayList<>();
+
+    // private constructor, use convert()
+    private MeshConverter() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println(
+                    "Usage: java MeshConverter <model.obj|model.gltf|model.glb> <output.mesh> [--quantize] [--half-uvs]");
+            return;
+        }
+        int flags = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--quantize")) {
+                flags |= BinaryMesh.QUANTIZED_POSITIONS;
+            } else if (args[i].equals("--half-uvs")) {
+                flags |= BinaryMesh.HALF_TEXCOORDS;
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        try {
+            convert(new File(args[0]), new File(args[1]), flags);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not convert " + args[0] + ": " + e);
+        }
+    }
+
+    /**
+     * Read a model and write it out as a binary mesh.
+     *
+     * @param flags BinaryMesh.QUANTIZED_POSITIONS and/or BinaryMesh.HALF_TEXCOORDS
+     */
+    public static void convert(File modelFile, File meshFile, int flags) throws IOException {
+        MeshConverter converter = new MeshConverter();
+        String name = modelFile.getName().toLowerCase();
+        if (name.endsWith(".obj")) {
+            converter.readObj(modelFile);
+        } else if (name.endsWith(".gltf") || name.endsWith(".glb")) {
+            converter.readGltf(modelFile);
+        } else {
+            throw new IOException("Unknown model type, expected .obj, .gltf or .glb");
+        }
+        if (converter.indices.isEmpty()) {
+            throw new IOException("No triangles in " + modelFile);
+        }
+        converter.write(meshFile, flags);
+        System.out.println("Wrote " + meshFile + ": " + converter.vertices.size() + " vertices, "
+                + converter.indices.size() / 3 + " triangles, " + meshFile.length() + " bytes");
+    }
+
+    private int addVertex(String key, float x, float y, float z, float s, float t) {
+        Integer index = vertexIndices.get(key);
+        if (index == null) {
+            index = vertices.size();
+            vertices.add(new float[] { x, y, z, s, t });
+            vertexIndices.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Positions, texture coordinates and faces, polygons are split into fans.
+     */
+    private void readObj(File file) throws IOException {
+        List<float[]> positions = new ArrayList<>();
+        List<float[]> texCoords = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts[0].equals("v")) {
+                    positions.add(new float[] { Float.parseFloat(parts[1]), Float.parseFloat(parts[2]),
+                            Float.parseFloat(parts[3]) });
+                } else if (parts[0].equals("vt")) {
+                    texCoords.add(new float[] { Float.parseFloat(parts[1]),
+                            parts.length > 2 ? Float.parseFloat(parts[2]) : 0f });
+                } else if (parts[0].equals("f")) {
+                    int[] face = new int[parts.length - 1];
+                    for (int i = 1; i < parts.length; i++) {
+                        String[] references = parts[i].split("/");
+                        int position = objIndex(references[0], positions.size());
+                        int texCoord = references.length > 1 && !references[1].isEmpty()
+                                ? objIndex(references[1], texCoords.size())
+                                : -1;
+                        float[] p = positions.get(position);
+                        float[] st = texCoord >= 0 ? texCoords.get(texCoord) : new float[2];
+                        face[i - 1] = addVertex(position + "/" + texCoord, p[0], p[1], p[2], st[0], st[1]);
+                    }
+                    for (int i = 2; i < face.length; i++) {
+                        indices.add(face[0]);
+                        indices.add(face[i - 1]);
+                        indices.add(face[i]);
+                    }
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed OBJ: " + e.getMessage());
+        }
+    }
+
+    /**
+     * OBJ indices start at 1, negative ones count back from the latest.
+     */
+    private static int objIndex(String reference, int count) throws IOException {
+        int index = Integer.parseInt(reference);
+        index = index < 0 ? count + index : index - 1;
+        if (index < 0 || index >= count) {
+            throw new IOException("OBJ index " + reference + " out of range");
+        }
+        return index;
+    }
+
+    /**
+     * Every triangle primitive of every mesh, from a .gltf with embedded or
+     * external buffers or from a .glb.
+     */
+    @SuppressWarnings("unchecked")
+    private void readGltf(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        String json;
+        ByteBuffer binaryChunk = null;
+        if (file.getName().toLowerCase().endsWith(".glb")) {
+            ByteBuffer glb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (glb.getInt(0) != 0x46546C67) { // "glTF"
+                throw new IOException("Not a GLB file");
+            }
+            int jsonLength = glb.getInt(12);
+            json = new String(bytes, 20, jsonLength, StandardCharsets.UTF_8);
+            int binaryStart = 20 + jsonLength;
+            if (binaryStart + 8 <= bytes.length) {
+                int binaryLength = glb.getInt(binaryStart);
+                binaryChunk = ByteBuffer.wrap(bytes, binaryStart + 8, binaryLength).slice()
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } else {
+            json = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Map<String, Object> gltf = (Map<String, Object>) new JsonParser(json).parse();
+        List<Object> bufferList = list(gltf, "buffers");
+        ByteBuffer[] buffers = new ByteBuffer[bufferList.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            String uri = (String) ((Map<String, Object>) bufferList.get(i)).get("uri");
+            if (uri == null) {
+                buffers[i] = binaryChunk;
+            } else if (uri.startsWith("data:")) {
+                buffers[i] = ByteBuffer.wrap(Base64.getDecoder().decode(uri.substring(uri.indexOf(',') + 1)));
+            } else {
+                buffers[i] = ByteBuffer.wrap(Files.readAllBytes(new File(file.getParentFile(), uri).toPath()));
+            }
+            if (buffers[i] == null) {
+                throw new IOException("Buffer " + i + " has no data");
+            }
+            buffers[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        for (Object mesh : list(gltf, "meshes")) {
+            for (Object primitiveObject : list((Map<String, Object>) mesh, "primitives")) {
+                Map<String, Object> primitive = (Map<String, Object>) primitiveObject;
+                if (primitive.containsKey("mode") && number(primitive, "mode") != 4) {
+                    continue; // Not GL_TRIANGLES
+                }
+                Map<String, Object> attributes = (Map<String, Object>) primitive.get("attributes");
+                if (!attributes.containsKey("POSITION")) {
+                    continue;
+                }
+                float[] positions = readAccessor(gltf, buffers, number(attributes, "POSITION"));
+                float[] texCoords = attributes.containsKey("TEXCOORD_0")
+                        ? readAccessor(gltf, buffers, number(attributes, "TEXCOORD_0"))
+                        : new float[positions.length / 3 * 2];
+                int count = positions.length / 3;
+                int[] primitiveIndices = new int[count];
+                String prefix = vertices.size() + ":"; // Keeps primitives from merging with each other
+                for (int i = 0; i < count; i++) {
+                    // glTF puts t = 0 at the top of the image, GL at the bottom
+                    primitiveIndices[i] = addVertex(prefix + i, positions[i * 3], positions[i * 3 + 1],
+                            positions[i * 3 + 2], texCoords[i * 2], 1f - texCoords[i * 2 + 1]);
+                }
+                if (primitive.containsKey("indices")) {
+                    for (float index : readAccessor(gltf, buffers, number(primitive, "indices"))) {
+                        indices.add(primitiveIndices[(int) index]);
+                    }
+                } else {
+                    for (int index : primitiveIndices) {
+                        indices.add(index);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read every component of an accessor as floats, applying normalization.
+     */
+    @SuppressWarnings("unchecked")
+    private static float[] readAccessor(Map<String, Object> gltf, ByteBuffer[] buffers, int accessorIndex)
+            throws IOException {
+        Map<String, Object> accessor = (Map<String, Object>) list(gltf, "accessors").get(accessorIndex);
+        if (!accessor.containsKey("bufferView")) {
+            throw new IOException("Sparse or empty accessors are not supported");
+        }
+        Map<String, Object> view = (Map<String, Object>) list(gltf, "bufferViews").get(number(accessor, "bufferView"));
+        int components;
+        switch ((String) accessor.get("type")) {
+            case "SCALAR":
+                components = 1;
+                break;
+            case "VEC2":
+                components = 2;
+                break;
+            case "VEC3":
+                components = 3;
+                break;
+            default:
+                throw new IOException("Unsupported accessor type " + accessor.get("type"));
+        }
+        int componentType = number(accessor, "componentType");
+        int componentSize = componentType == 5126 || componentType == 5125 ? 4
+                : componentType == 5122 || componentType == 5123 ? 2 : 1;
+        boolean normalized = Boolean.TRUE.equals(accessor.get("normalized"));
+        int count = number(accessor, "count");
+        int stride = view.containsKey("byteStride") ? number(view, "byteStride") : components * componentSize;
+        int start = (view.containsKey("byteOffset") ? number(view, "byteOffset") : 0)
+                + (accessor.containsKey("byteOffset") ? number(accessor, "byteOffset") : 0);
+        ByteBuffer buffer = buffers[number(view, "buffer")];
+
+        float[] values = new float[count * components];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < components; c++) {
+                int at = start + i * stride + c * componentSize;
+                float value;
+                switch (componentType) {
+                    case 5126: // FLOAT
+                        value = buffer.getFloat(at);
+                        break;
+                    case 5125: // UNSIGNED_INT
+                        value = buffer.getInt(at) & 0xFFFFFFFFL;
+                        break;
+                    case 5123: // UNSIGNED_SHORT
+                        value = (buffer.getShort(at) & 0xFFFF) / (normalized ? 65535f : 1f);
+                        break;
+                    case 5122: // SHORT
+                        value = normalized ? Math.max(buffer.getShort(at) / 32767f, -1f) : buffer.getShort(at);
+                        break;
+                    case 5121: // UNSIGNED_BYTE
+                        value = (buffer.get(at) & 0xFF) / (normalized ? 255f : 1f);
+                        break;
+                    case 5120: // BYTE
+                        value = normalized ? Math.max(buffer.get(at) / 127f, -1f) : buffer.get(at);
+                        break;
+                    default:
+                        throw new IOException("Unsupported component type " + componentType);
+                }
+                values[i * components + c] = value;
+            }
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Map<String, Object> object, String key) {
+        Object value = object.get(key);
+        return value == null ? new ArrayList<>() : (List<Object>) value;
+    }
+
+    private static int number(Map<String, Object> object, String key) {
+        return ((Double) object.get(key)).intValue();
+    }
+
+    /**
+     * Lay the mesh out as described in BinaryMesh.
+     */
+    private void write(File meshFile, int flags) throws IOException {
+        float[] bounds = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE,
+                -Float.MAX_VALUE };
+        float maxTexCoord = 0f;
+        for (float[] vertex : vertices) {
+            for (int axis = 0; axis < 3; axis++) {
+                bounds[axis] = Math.min(bounds[axis], vertex[axis]);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], vertex[axis]);
+            }
+            maxTexCoord = Math.max(maxTexCoord,
+                    Math.max(Math.abs(vertex[3]), Math.abs(vertex[4])));
+        }
+        if ((flags & BinaryMesh.HALF_TEXCOORDS) != 0 && maxTexCoord > 4f) {
+            System.out.println("Texture coordinates reach " + maxTexCoord + ", half floats are only accurate to "
+                    + Math.ulp(maxTexCoord) * 8192 + " there");
+        }
+        if (vertices.size() > 65536) {
+            flags |= BinaryMesh.INDICES_32;
+        }
+
+        boolean quantized = (flags & BinaryMesh.QUANTIZED_POSITIONS) != 0;
+        boolean half = (flags & BinaryMesh.HALF_TEXCOORDS) != 0;
+        int stride = (quantized ? 8 : 12) + (half ? 4 : 8);
+        int indexSize = (flags & BinaryMesh.INDICES_32) != 0 ? 4 : 2;
+        int vertexOffset = BinaryMesh.HEADER_SIZE;
+        int indexOffset = vertexOffset + vertices.size() * stride; // Strides are multiples of 4
+        int size = indexOffset + ((indices.size() * indexSize + 3) & ~3);
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(BinaryMesh.MAGIC).putShort((short) BinaryMesh.VERSION).putShort((short) flags);
+        out.putInt(vertices.size()).putInt(indices.size()).putInt(stride).putInt(vertexOffset).putInt(indexOffset);
+        out.putInt(0);
+        for (float bound : bounds) {
+            out.putFloat(bound);
+        }
+
+        out.position(vertexOffset);
+        float[] center = new float[3], halfExtent = new float[3];
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] = (bounds[axis] + bounds[axis + 3]) / 2;
+            float extent = (bounds[axis + 3] - bounds[axis]) / 2;
+            halfExtent[axis] = extent > 0 ? extent : 1; // Same as BinaryMesh.halfExtent()
+        }
+        for (float[] vertex : vertices) {
+            if (quantized) {
+                for (int axis = 0; axis < 3; axis++) {
+                    float fraction = (vertex[axis] - center[axis]) / halfExtent[axis];
+                    out.putShort((short) Math.round(
+                            Math.max(-1f, Math.min(1f, fraction)) * 32767f));
+                }
+                out.putShort((short) 0);
+            } else {
+                out.putFloat(vertex[0]).putFloat(vertex[1]).putFloat(vertex[2]);
+            }
+            if (half) {
+                out.putShort(toHalf(vertex[3])).putShort(toHalf(vertex[4]));
+            } else {
+                out.putFloat(vertex[3]).putFloat(vertex[4]);
+            }
+        }
+        out.position(indexOffset);
+        for (int index : indices) {
+            if (indexSize == 4) {
+                out.putInt(index);
+            } else {
+                out.putShort((short) index);
+            }
+        }
+
+        try (OutputStream stream = new FileOutputStream(meshFile)) {
+            stream.write(out.array());
+        }
+    }
+
+    /**
+     * Round a float to the nearest half float, ties to even.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (floatExponent == 0xFF) {
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0)); // Infinity or NaN
+        }
+        int exponent = floatExponent - 127 + 15;
+        if (exponent >= 31) {
+            return (short) (sign | 0x7C00); // Too large, infinity
+        }
+        int shift, half;
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign; // Too small, zero
+            }
+            // Subnormal, the implicit leading bit becomes explicit
+            mantissa |= 0x800000;
+            shift = 14 - exponent;
+            half = mantissa >> shift;
+        } else {
+            shift = 13;
+            half = (exponent << 10) | (mantissa >> shift);
+        }
+        int remainder = mantissa & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+            half++; // A carry out of the mantissa correctly bumps the exponent
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Just enough JSON for glTF: objects, arrays, strings, numbers, true,
+     * false and null. Numbers are read as doubles.
+     */
+    private static class JsonParser {
+        private final String text;
+        private int position;
+
+        JsonParser(String text) {
+            this.text = text;
+        }
+
+        Object parse() throws IOException {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw new IOException("Unexpected end of JSON");
+            }
+            char c = text.charAt(position);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                position++;
+                skipWhitespace();
+                if (peek('}')) {
+                    return object;
+                }
+                do {
+                    skipWhitespace();
+                    String key = parseString();
+                    skipWhitespace();
+                    expect(':');
+                    object.put(key, parse());
+                    skipWhitespace();
+                } while (peek(','));
+                expect('}');
+                return object;
+            }
+            if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                position++;
+                skipWhitespace();
+                if (peek(']')) {
+                    return array;
+                }
+                do {
+                    array.add(parse());
+                    skipWhitespace();
+                } while (peek(','));
+                expect(']');
+                return array;
+            }
+            if (c == '"') {
+                return parseString();
+            }
+            if (text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            }
+            if (text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            try {
+                return Double.parseDouble(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected JSON at " + start);
+            }
+        }
+
+        private String parseString() throws IOException {
+            expect('"');
+            StringBuilder builder = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c == '\\') {
+                    char escaped = text.charAt(position++);
+                    switch (escaped) {
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'u':
+                            builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            position += 4;
+                            break;
+                        default:
+                            builder.append(escaped); // \" \\ \/
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+            throw new IOException("Unterminated JSON string");
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean peek(char c) {
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) throws IOException {
+            if (!peek(c)) {
+                throw new IOException("Expected '" + c + "' in JSON at " + position);
+            }
+        }
+    }
+}
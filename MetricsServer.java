@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Optional localhost HTTP endpoint exposing FrameMetrics and GpuResources in
+ * the Prometheus text format at /metrics. Enable with -Dcorridor.metrics.port=PORT.
+ */
+public class MetricsServer {
+    private static final String PORT_PROPERTY = "corridor.metrics.port";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private final FrameMetrics metrics;
+    private final GpuResources resources;
+    private final HttpServer server;
+
+    private MetricsServer(FrameMetrics metrics, GpuResources resources, int port) throws IOException {
+        this.metrics = metrics;
+        this.resources = resources;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.start(); // Default executor serves requests on its own thread
+    }
+
+    /**
+     * Start the endpoint if the port property is set.
+     *
+     * @param metrics   counters to expose
+     * @param resources GL objects whose memory is reported
+     * @return the running server or null when disabled or the port is unusable
+     */
+    public static MetricsServer startFromProperties(FrameMetrics metrics, GpuResources resources) {
+        String port = System.getProperty(PORT_PROPERTY);
+        if (port == null) {
+            return null;
+        }
+        try {
+            MetricsServer metricsServer = new MetricsServer(metrics, resources, Integer.parseInt(port));
+            System.out.println("Metrics available at http://localhost:" + port + "/metrics");
+            return metricsServer;
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not start metrics endpoint on port " + port + ": " + e);
+            return null;
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Build the exposition text. Runs on the server thread, never the frame path.
+     */
+    private String render() {
+        long[] frameTimes = metrics.sortedFrameTimes();
+        StringBuilder sb = new StringBuilder();
+
+        gauge(sb, "corridor_fps", "Frames per second over the recent frame history", FrameMetrics.fps(frameTimes));
+
+        sb.append("# HELP corridor_frame_time_seconds Interval between frames\n");
+        sb.append("# TYPE corridor_frame_time_seconds summary\n");
+        for (double q : QUANTILES) {
+            sb.append("corridor_frame_time_seconds{quantile=\"").append(q).append("\"} ")
+                    .append(format(FrameMetrics.percentile(frameTimes, q))).append('\n');
+        }
+        // Quantiles cover the recent history only, sum and count everything since start
+        sb.append("corridor_frame_time_seconds_sum ").append(format(metrics.getTotalFrameNanos() / 1e9))
+                .append('\n');
+        sb.append("corridor_frame_time_seconds_count ").append(metrics.getFrameCount()).append('\n');
+
+        counter(sb, "corridor_frames_total", "Frames rendered", metrics.getFrameCount());
+        gauge(sb, "corridor_draw_calls", "Draw calls issued by the last frame", metrics.getLastFrameDrawCalls());
+        counter(sb, "corridor_draw_calls_total", "Draw calls issued since start", metrics.getTotalDrawCalls());
+        gauge(sb, "corridor_state_calls", "GL state calls issued by the last frame",
+                metrics.getLastFrameStateIssued());
+        gauge(sb, "corridor_state_calls_skipped", "Redundant GL state calls skipped in the last frame",
+                metrics.getLastFrameStateSkipped());
+        counter(sb, "corridor_state_calls_total", "GL state calls issued since start", metrics.getTotalStateIssued());
+        counter(sb, "corridor_state_calls_skipped_total", "Redundant GL state calls skipped since start",
+                metrics.getTotalStateSkipped());
+        gauge(sb, "corridor_walkers", "Walkers simulated by the crowd", metrics.getWalkerCount());
+        gauge(sb, "corridor_walker_update_seconds", "CPU time of the last crowd update",
+                metrics.getWalkerUpdateNanos() / 1e9);
+        gauge(sb, "corridor_texture_bytes", "Estimated texture memory in use",
+                resources.getBytes(GpuResources.Category.TEXTURE));
+
+        sb.append("# HELP corridor_gpu_bytes Estimated GPU memory in use by category\n");
+        sb.append("# TYPE corridor_gpu_bytes gauge\n");
+        for (GpuResources.Category category : GpuResources.Category.values()) {
+            sb.append("corridor_gpu_bytes{category=\"").append(category.label()).append("\"} ")
+                    .append(resources.getBytes(category)).append('\n');
+        }
+        sb.append("# HELP corridor_gpu_objects Live GL objects by category\n");
+        sb.append("# TYPE corridor_gpu_objects gauge\n");
+        for (GpuResources.Category category : GpuResources.Category.values()) {
+            sb.append("corridor_gpu_objects{category=\"").append(category.label()).append("\"} ")
+                    .append(resources.getCount(category)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+}
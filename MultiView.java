@@ -0,0 +1,112 @@
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import org.joml.Matrix4f;
+
+/**
+ * Draws several views of the corridor side by side in a single pass, for
+ * setups where one machine drives a row of displays. The window is split
+ * into one viewport per view and the corridor program's geometry shader
+ * copies every triangle into each of them through gl_ViewportIndex, turning
+ * the camera by a fixed yaw per view. The frame's draws are submitted once
+ * whatever the number of views, so CPU cost stays flat as views are added.
+ *
+ * Enable with -Dcorridor.views=COUNT (2 to MAX_VIEWS). By default adjacent
+ * views meet edge to edge; -Dcorridor.views.angle=DEGREES sets the yaw
+ * between views instead, for displays that are not laid out flat.
+ */
+public class MultiView {
+    public static final int MAX_VIEWS = 8; // Geometry shader invocations, see corridor-multiview-geometry.glsl
+    private static final float FIELD_OF_VIEW = 60.0f; // Vertical, degrees, the same as the single view
+
+    private final int viewCount;
+    private final float angle; // Degrees between views, NaN to use each view's horizontal field of view
+    private final float[] viewports; // x, y, width, height per view
+    private final float[] offsets; // View space rotation per view, 16 floats each
+    private final Matrix4f offset = new Matrix4f();
+    private int program;
+    private int offsetsID;
+
+    public MultiView(int viewCount, float angle) {
+        this.viewCount = viewCount;
+        this.angle = angle;
+        this.viewports = new float[viewCount * 4];
+        this.offsets = new float[viewCount * 16];
+    }
+
+    /**
+     * Read the view settings from system properties.
+     *
+     * @return null unless more than one view was asked for
+     */
+    public static MultiView fromProperties() {
+        int viewCount = Integer.getInteger("corridor.views", 1);
+        if (viewCount <= 1) {
+            return null;
+        }
+        if (viewCount > MAX_VIEWS) {
+            System.out.println("At most " + MAX_VIEWS + " views are supported, drawing " + MAX_VIEWS);
+            viewCount = MAX_VIEWS;
+        }
+        float angle = Float.NaN;
+        String angleProperty = System.getProperty("corridor.views.angle");
+        if (angleProperty != null) {
+            try {
+                angle = Float.parseFloat(angleProperty);
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring corridor.views.angle, not a number");
+            }
+        }
+        return new MultiView(viewCount, angle);
+    }
+
+    public int getViewCount() {
+        return viewCount;
+    }
+
+    /**
+     * Use the view count with a program built from the multi-view vertex and
+     * geometry shaders.
+     */
+    public void init(int program) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        this.program = program;
+        offsetsID = gl.glGetUniformLocation(program, "view_offsets");
+        gl.glProgramUniform1i(program, gl.glGetUniformLocation(program, "viewCount"), viewCount);
+    }
+
+    /**
+     * Split the window into side by side viewports and set the shared
+     * perspective and the per view offsets to match.
+     */
+    public void reshape(int width, int height, Matrix4f perspectiveMatrix) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        float viewWidth = (float) width / viewCount;
+        float aspectRatio = viewWidth / Math.max(1, height);
+        perspectiveMatrix.setPerspective((float) Math.toRadians(FIELD_OF_VIEW), aspectRatio, 0.1f,
+                10000.0f);
+
+        double halfHeight = Math.tan(Math.toRadians(FIELD_OF_VIEW / 2.0));
+        float step = Float.isNaN(angle) ? (float) (2.0 * Math.atan(halfHeight * aspectRatio))
+                : (float) Math.toRadians(angle);
+        for (int i = 0; i < viewCount; i++) {
+            viewports[i * 4] = i * viewWidth;
+            viewports[i * 4 + 1] = 0;
+            viewports[i * 4 + 2] = viewWidth;
+            viewports[i * 4 + 3] = height;
+
+            // Views left of centre turn the camera left, which rotates the scene the other way
+            float yaw = ((viewCount - 1) / 2.0f - i) * step;
+            offset.rotationY(-yaw).get(offsets, i * 16);
+        }
+        gl.glProgramUniformMatrix4fv(program, offsetsID, viewCount, false, offsets, 0);
+    }
+
+    /**
+     * Set the viewports again. glViewport, used by the virtual texture
+     * feedback pass, resets every one of them.
+     */
+    public void beginFrame() {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        gl.glViewportArrayv(0, viewCount, viewports, 0);
+    }
+}
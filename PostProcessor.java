@@ -0,0 +1,204 @@
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Post processing chain: the scene is drawn into a half float target, bright
+ * areas are extracted and blurred at half resolution for bloom, the result is
+ * tone mapped and finally anti-aliased with FXAA before being copied to the
+ * window.
+ *
+ * Every pass is a compute shader dispatched over a fixed size image, so the
+ * GPU time added per frame depends only on the window size. Intermediate
+ * textures come from a RenderTargetPool and are only recreated on reshape.
+ *
+ * Enable with -Dcorridor.post=true, tune with -Dcorridor.post.exposure=E and
+ * -Dcorridor.post.bloom=STRENGTH.
+ */
+public class PostProcessor {
+    private static final String BRIGHT_SHADER_FILE = "post-bright-compute.glsl";
+    private static final String BLUR_SHADER_FILE = "post-blur-compute.glsl";
+    private static final String TONEMAP_SHADER_FILE = "post-tonemap-compute.glsl";
+    private static final String FXAA_SHADER_FILE = "post-fxaa-compute.glsl";
+    private static final int GROUP_SIZE = 8; // local_size_x and local_size_y of every pass
+    private static final float BLOOM_THRESHOLD = 0.8f;
+    private static final float BLOOM_KNEE = 0.4f;
+
+    private final GpuResources resources;
+    private final GLStateCache cache;
+    private final RenderTargetPool pool;
+    private final int brightProgram, blurProgram, tonemapProgram, fxaaProgram;
+    private final int blurDirectionID;
+    private int[] framebuffers = new int[2]; // Scene, and the finished frame to blit from
+    private int width, height;
+
+    // Held between beginScene() and finish()
+    private RenderTargetPool.RenderTarget sceneColor, sceneDepth;
+    private int attachedColor, attachedDepth, attachedOutput; // Textures currently attached to the framebuffers
+    private boolean sceneComplete; // Status of the scene framebuffer with its current attachments
+
+    public PostProcessor(GpuResources resources, GLStateCache cache) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        this.resources = resources;
+        this.cache = cache;
+        this.pool = new RenderTargetPool(resources, cache);
+
+        brightProgram = resources.track(GpuResources.Category.PROGRAM, Utils.createShaderProgram(BRIGHT_SHADER_FILE),
+                0, "bloom bright pass");
+        blurProgram = resources.track(GpuResources.Category.PROGRAM, Utils.createShaderProgram(BLUR_SHADER_FILE), 0,
+                "bloom blur");
+        tonemapProgram = resources.track(GpuResources.Category.PROGRAM,
+                Utils.createShaderProgram(TONEMAP_SHADER_FILE), 0, "tone mapping");
+        fxaaProgram = resources.track(GpuResources.Category.PROGRAM, Utils.createShaderProgram(FXAA_SHADER_FILE), 0,
+                "FXAA");
+
+        // Constant uniforms are set once, program state keeps them
+        gl.glProgramUniform1f(brightProgram, gl.glGetUniformLocation(brightProgram, "threshold"), BLOOM_THRESHOLD);
+        gl.glProgramUniform1f(brightProgram, gl.glGetUniformLocation(brightProgram, "knee"), BLOOM_KNEE);
+        gl.glProgramUniform1f(tonemapProgram, gl.glGetUniformLocation(tonemapProgram, "exposure"),
+                floatProperty("corridor.post.exposure", 1.0f));
+        gl.glProgramUniform1f(tonemapProgram, gl.glGetUniformLocation(tonemapProgram, "bloomStrength"),
+                floatProperty("corridor.post.bloom", 0.5f));
+        blurDirectionID = gl.glGetUniformLocation(blurProgram, "direction");
+
+        gl.glGenFramebuffers(framebuffers.length, framebuffers, 0);
+        resources.track(GpuResources.Category.FRAMEBUFFER, framebuffers[0], 0, "post scene framebuffer");
+        resources.track(GpuResources.Category.FRAMEBUFFER, framebuffers[1], 0, "post output framebuffer");
+    }
+
+    private static float floatProperty(String name, float defaultValue) {
+        try {
+            return Float.parseFloat(System.getProperty(name, Float.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring -D" + name + "=" + System.getProperty(name) + ", not a number, using "
+                    + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Drop every target, they are created again at the new size by the next
+     * frame.
+     */
+    public void reshape(int width, int height) {
+        this.width = Math.max(1, width);
+        this.height = Math.max(1, height);
+        pool.reshape();
+        attachedColor = attachedDepth = attachedOutput = 0; // Deleted, their names may be reused
+    }
+
+    /**
+     * Redirect drawing into the scene target. Clear and draw as usual
+     * afterwards. If the scene framebuffer is incomplete, drawing stays on the
+     * window and finish() does nothing until the next reshape.
+     */
+    public void beginScene() {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        sceneColor = pool.acquire(width, height, GL_RGBA16F);
+        sceneDepth = pool.acquire(width, height, GL_DEPTH_COMPONENT24);
+        cache.bindFramebuffer(framebuffers[0]);
+        if (attachedColor != sceneColor.getTexture() || attachedDepth != sceneDepth.getTexture()) {
+            // Only after reshape, the pool hands back the same textures every frame
+            attachedColor = sceneColor.getTexture();
+            attachedDepth = sceneDepth.getTexture();
+            gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, attachedColor, 0);
+            gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, attachedDepth, 0);
+            int status = gl.glCheckFramebufferStatus(GL_FRAMEBUFFER);
+            sceneComplete = status == GL_FRAMEBUFFER_COMPLETE;
+            if (!sceneComplete) {
+                System.err.println("glCheckFramebufferStatus: 0x" + Integer.toHexString(status)
+                        + " for the post processing scene framebuffer at " + width + "x" + height
+                        + ", drawing without post processing");
+            }
+        }
+        if (!sceneComplete) {
+            pool.release(sceneColor);
+            pool.release(sceneDepth);
+            sceneColor = sceneDepth = null;
+            cache.bindFramebuffer(0);
+        }
+    }
+
+    /**
+     * Run the chain on the scene drawn since beginScene() and copy the result
+     * to the window. Leaves the default framebuffer bound.
+     */
+    public void finish() {
+        if (sceneColor == null) {
+            pool.endFrame(); // Bypassed by beginScene(), the scene is already in the window
+            return;
+        }
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int halfWidth = Math.max(1, width / 2);
+        int halfHeight = Math.max(1, height / 2);
+
+        // Bright pass, downsampling to half resolution on the way
+        RenderTargetPool.RenderTarget bloom = pool.acquire(halfWidth, halfHeight, GL_RGBA16F);
+        cache.useProgram(brightProgram);
+        cache.bindTexture2D(0, sceneColor.getTexture());
+        dispatch(gl, bloom);
+
+        // Separable blur, there and back between two half resolution targets
+        RenderTargetPool.RenderTarget blurred = pool.acquire(halfWidth, halfHeight, GL_RGBA16F);
+        cache.useProgram(blurProgram);
+        gl.glUniform2f(blurDirectionID, 1.0f / halfWidth, 0f);
+        cache.bindTexture2D(0, bloom.getTexture());
+        dispatch(gl, blurred);
+        gl.glUniform2f(blurDirectionID, 0f, 1.0f / halfHeight);
+        cache.bindTexture2D(0, blurred.getTexture());
+        dispatch(gl, bloom);
+        pool.release(blurred);
+
+        // Tone map the scene plus bloom into display range
+        RenderTargetPool.RenderTarget mapped = pool.acquire(width, height, GL_RGBA8);
+        cache.useProgram(tonemapProgram);
+        cache.bindTexture2D(0, sceneColor.getTexture());
+        cache.bindTexture2D(1, bloom.getTexture());
+        dispatch(gl, mapped);
+        pool.release(bloom);
+        pool.release(sceneColor);
+        pool.release(sceneDepth);
+
+        // FXAA
+        RenderTargetPool.RenderTarget output = pool.acquire(width, height, GL_RGBA8);
+        cache.useProgram(fxaaProgram);
+        cache.bindTexture2D(0, mapped.getTexture());
+        dispatch(gl, output);
+        pool.release(mapped);
+
+        // Copy to the window
+        gl.glMemoryBarrier(GL_FRAMEBUFFER_BARRIER_BIT);
+        gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, framebuffers[1]);
+        if (attachedOutput != output.getTexture()) {
+            attachedOutput = output.getTexture();
+            gl.glFramebufferTexture2D(GL_READ_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, attachedOutput, 0);
+        }
+        gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        gl.glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+        cache.invalidateFramebuffer(); // Read and draw bindings were set separately
+        cache.bindFramebuffer(0);
+        pool.release(output);
+        pool.endFrame();
+    }
+
+    /**
+     * Run the bound compute program over every texel of the target, then make
+     * its writes visible to the texture fetches of the next pass.
+     */
+    private void dispatch(GL4 gl, RenderTargetPool.RenderTarget target) {
+        gl.glBindImageTexture(0, target.getTexture(), 0, false, 0, GL_WRITE_ONLY, target.getFormat());
+        gl.glDispatchCompute((target.getWidth() + GROUP_SIZE - 1) / GROUP_SIZE,
+                (target.getHeight() + GROUP_SIZE - 1) / GROUP_SIZE, 1);
+        gl.glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT);
+    }
+
+    public void dispose() {
+        pool.dispose();
+        for (int framebuffer : framebuffers) {
+            resources.release(GpuResources.Category.FRAMEBUFFER, framebuffer);
+        }
+        resources.release(GpuResources.Category.PROGRAM, brightProgram);
+        resources.release(GpuResources.Category.PROGRAM, blurProgram);
+        resources.release(GpuResources.Category.PROGRAM, tonemapProgram);
+        resources.release(GpuResources.Category.PROGRAM, fxaaProgram);
+    }
+}
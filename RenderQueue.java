@@ -0,0 +1,202 @@
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.Matrix4f;
+
+/**
+ * Collects the frame's draws, sorts them so state changes are grouped and
+ * executes them through a GLStateCache.
+ *
+ * Each draw gets a 63 bit sort key, most significant first:
+ * program (7 bits) | texture (16) | mesh (8) | depth (18) | submission index (14).
+ * The sign bit stays clear, so sorting the keys as plain longs orders by
+ * program, then texture, then mesh, then front to back, and the low bits lead
+ * back to the draw's data. Programs, textures and meshes go into the key as
+ * small indices handed out in order of first use rather than as GL names, so
+ * they only share a value once there are more of them than the field holds,
+ * which merely costs some grouping. Nothing is allocated per frame once the
+ * arrays have grown to fit.
+ */
+public class RenderQueue {
+    private static final int INDEX_BITS = 14;
+    private static final int DEPTH_BITS = 18;
+    private static final int MESH_BITS = 8;
+    private static final int TEXTURE_BITS = 16;
+    private static final int PROGRAM_BITS = 7;
+    private static final int MAX_DRAWS = 1 << INDEX_BITS;
+    private static final float MAX_DEPTH = 10000.0f; // Far plane of the perspective matrix
+
+    private long[] keys;
+    private int[] programs, vertexArrays, textures, lightmapLayers, indexTypes, firsts, vertexCounts;
+    private VirtualTexture[] virtualTextures;
+    private float[] modelViews; // 16 floats per draw
+    private int size;
+    private final DenseIndex programIndex = new DenseIndex(), textureIndex = new DenseIndex(),
+            meshIndex = new DenseIndex();
+
+    // Uniform locations of the program last looked up
+    private int locationsProgram = -1;
+    private int mv_matrixID, p_matrixID, lightmapLayerID;
+    private final FloatBuffer scratchBuffer = Buffers.newDirectFloatBuffer(16);
+
+    public RenderQueue(int capacity) {
+        grow(capacity);
+    }
+
+    /**
+     * Queue a draw of GL_TRIANGLES.
+     *
+     * @param program        shader program with mv_matrix and p_matrix uniforms
+     * @param vertexArray    VAO holding the mesh
+     * @param texture        texture for unit 0, ignored when virtualTexture is set
+     * @param virtualTexture virtual texture to bind instead, or null
+     * @param lightmapLayer  layer of the bound lightmap array, -1 for none
+     * @param modelView      model view matrix, copied
+     */
+    public void submit(int program, int vertexArray, int texture, VirtualTexture virtualTexture, int lightmapLayer,
+            Matrix4f modelView, int first, int vertexCount) {
+        add(program, vertexArray, texture, virtualTexture, lightmapLayer, modelView, 0, first, vertexCount);
+    }
+
+    /**
+     * Queue an indexed draw of GL_TRIANGLES from the VAO's element buffer.
+     *
+     * @param indexType  GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+     * @param firstIndex first index to draw, not a byte offset
+     * @see #submit
+     */
+    public void submitElements(int program, int vertexArray, int texture, VirtualTexture virtualTexture,
+            int lightmapLayer, Matrix4f modelView, int indexType, int firstIndex, int indexCount) {
+        add(program, vertexArray, texture, virtualTexture, lightmapLayer, modelView, indexType, firstIndex,
+                indexCount);
+    }
+
+    private void add(int program, int vertexArray, int texture, VirtualTexture virtualTexture, int lightmapLayer,
+            Matrix4f modelView, int indexType, int first, int vertexCount) {
+        if (size == MAX_DRAWS) {
+            throw new IllegalStateException("Render queue is full");
+        }
+        if (size == keys.length) {
+            grow(keys.length * 2);
+        }
+        int i = size++;
+        programs[i] = program;
+        vertexArrays[i] = vertexArray;
+        textures[i] = texture;
+        virtualTextures[i] = virtualTexture;
+        lightmapLayers[i] = lightmapLayer;
+        indexTypes[i] = indexType;
+        firsts[i] = first;
+        vertexCounts[i] = vertexCount;
+        modelView.get(modelViews, i * 16);
+
+        // Virtual textures sort by their indirection texture, which is what changes between them
+        int textureKey = virtualTexture != null ? virtualTexture.getIndirectionTexture() : texture;
+        float depth = Math.max(0f, Math.min(1f, -modelView.m32() / MAX_DEPTH)); // View space distance of the origin
+        long key = programIndex.of(program) & ((1 << PROGRAM_BITS) - 1);
+        key = (key << TEXTURE_BITS) | (textureIndex.of(textureKey) & ((1 << TEXTURE_BITS) - 1));
+        key = (key << MESH_BITS) | (meshIndex.of(vertexArray) & ((1 << MESH_BITS) - 1));
+        key = (key << DEPTH_BITS) | (long) (depth * ((1 << DEPTH_BITS) - 1));
+        key = (key << INDEX_BITS) | i;
+        keys[i] = key;
+    }
+
+    /**
+     * Sort and issue every queued draw, then empty the queue.
+     *
+     * @param virtualTextureSystem binds virtual textures, null when there are none
+     */
+    public void execute(GLStateCache cache, Matrix4f perspectiveMatrix, VirtualTextureSystem virtualTextureSystem,
+            FrameMetrics metrics) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        Arrays.sort(keys, 0, size);
+
+        int previousProgram = -1;
+        for (int k = 0; k < size; k++) {
+            int i = (int) (keys[k] & (MAX_DRAWS - 1));
+
+            if (programs[i] != previousProgram) {
+                // Projection is the same for the whole frame, upload it once per program
+                previousProgram = programs[i];
+                cache.useProgram(previousProgram);
+                lookUpLocations(gl, previousProgram);
+                gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
+            }
+            cache.bindVertexArray(vertexArrays[i]);
+
+            if (virtualTextures[i] != null) {
+                virtualTextureSystem.bind(virtualTextures[i]);
+            } else {
+                if (virtualTextureSystem != null) {
+                    virtualTextureSystem.unbind();
+                }
+                cache.bindTexture2D(0, textures[i]);
+            }
+
+            scratchBuffer.clear();
+            scratchBuffer.put(modelViews, i * 16, 16).flip();
+            gl.glUniformMatrix4fv(mv_matrixID, 1, false, scratchBuffer);
+            gl.glUniform1i(lightmapLayerID, lightmapLayers[i]);
+            if (indexTypes[i] == 0) {
+                gl.glDrawArrays(GL_TRIANGLES, firsts[i], vertexCounts[i]);
+            } else {
+                gl.glDrawElements(GL_TRIANGLES, vertexCounts[i], indexTypes[i],
+                        (long) firsts[i] * (indexTypes[i] == GL_UNSIGNED_INT ? 4 : 2));
+            }
+            metrics.drawCall();
+        }
+        Arrays.fill(virtualTextures, 0, size, null);
+        size = 0;
+    }
+
+    private void lookUpLocations(GL4 gl, int program) {
+        if (program == locationsProgram) {
+            return;
+        }
+        locationsProgram = program;
+        mv_matrixID = gl.glGetUniformLocation(program, "mv_matrix");
+        p_matrixID = gl.glGetUniformLocation(program, "p_matrix");
+        lightmapLayerID = gl.glGetUniformLocation(program, "lightmapLayer"); // -1, and ignored, when unused
+    }
+
+    private void grow(int capacity) {
+        capacity = Math.min(Math.max(capacity, 1), MAX_DRAWS);
+        keys = keys == null ? new long[capacity] : Arrays.copyOf(keys, capacity);
+        programs = programs == null ? new int[capacity] : Arrays.copyOf(programs, capacity);
+        vertexArrays = vertexArrays == null ? new int[capacity] : Arrays.copyOf(vertexArrays, capacity);
+        textures = textures == null ? new int[capacity] : Arrays.copyOf(textures, capacity);
+        lightmapLayers = lightmapLayers == null ? new int[capacity] : Arrays.copyOf(lightmapLayers, capacity);
+        indexTypes = indexTypes == null ? new int[capacity] : Arrays.copyOf(indexTypes, capacity);
+        firsts = firsts == null ? new int[capacity] : Arrays.copyOf(firsts, capacity);
+        vertexCounts = vertexCounts == null ? new int[capacity] : Arrays.copyOf(vertexCounts, capacity);
+        virtualTextures = virtualTextures == null ? new VirtualTexture[capacity]
+                : Arrays.copyOf(virtualTextures, capacity);
+        modelViews = modelViews == null ? new float[capacity * 16] : Arrays.copyOf(modelViews, capacity * 16);
+    }
+
+    /**
+     * Hands out 0, 1, 2... to GL names in the order they are first seen. GL
+     * names are small consecutive integers, so a table indexed by name is
+     * enough and lookups don't allocate.
+     */
+    private static class DenseIndex {
+        private int[] slots = new int[64]; // Index + 1 per name, 0 for unseen
+        private int count;
+
+        int of(int name) {
+            if (name < 0) {
+                return 0;
+            }
+            if (name >= slots.length) {
+                slots = Arrays.copyOf(slots, Math.max(name + 1, slots.length * 2));
+            }
+            if (slots[name] == 0) {
+                slots[name] = ++count;
+            }
+            return slots[name] - 1;
+        }
+    }
+}
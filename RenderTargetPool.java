@@ -0,0 +1,143 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Hands out screen sized textures for intermediate passes and takes them back
+ * when a pass is done with them, so passes with the same size and format
+ * share textures within a frame and across frames.
+ *
+ * Textures are only created when nothing free matches, which happens on the
+ * first frame after reshape() and then not again until the next one. With
+ * -Dcorridor.debugGL an allocation on any later frame is reported, since it
+ * means a pass is leaking targets.
+ */
+public class RenderTargetPool {
+    private final GpuResources resources;
+    private final GLStateCache cache;
+    private final Map<Long, ArrayDeque<RenderTarget>> free = new HashMap<>();
+    private final List<RenderTarget> allocated = new ArrayList<>();
+    private boolean warm; // Set at the end of the first frame after reshape()
+
+    /**
+     * An immutable storage 2D texture, linear filtered and clamped.
+     */
+    public static class RenderTarget {
+        final int texture;
+        final int width, height;
+        final int format;
+
+        RenderTarget(int texture, int width, int height, int format) {
+            this.texture = texture;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        public int getTexture() {
+            return texture;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+    }
+
+    public RenderTargetPool(GpuResources resources, GLStateCache cache) {
+        this.resources = resources;
+        this.cache = cache;
+    }
+
+    /**
+     * Take a free target of the given size and sized internal format,
+     * creating one if there is none.
+     */
+    public RenderTarget acquire(int width, int height, int format) {
+        ArrayDeque<RenderTarget> matching = free.get(key(width, height, format));
+        if (matching != null && !matching.isEmpty()) {
+            return matching.pop();
+        }
+        if (warm && GpuResources.isDebug()) {
+            System.out.println("Render target " + width + "x" + height + " allocated outside of reshape");
+        }
+
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int[] textureIDs = new int[1];
+        gl.glGenTextures(1, textureIDs, 0);
+        resources.track(GpuResources.Category.TEXTURE, textureIDs[0], (long) width * height * bytesPerTexel(format),
+                "render target " + width + "x" + height);
+        cache.bindTexture2D(0, textureIDs[0]);
+        gl.glTexStorage2D(GL_TEXTURE_2D, 1, format, width, height);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+        RenderTarget target = new RenderTarget(textureIDs[0], width, height, format);
+        allocated.add(target);
+        return target;
+    }
+
+    /**
+     * Give a target back for later passes and frames to reuse.
+     */
+    public void release(RenderTarget target) {
+        free.computeIfAbsent(key(target.width, target.height, target.format), k -> new ArrayDeque<>()).push(target);
+    }
+
+    /**
+     * Mark the end of a frame. Every target should have been released.
+     */
+    public void endFrame() {
+        warm = true;
+    }
+
+    /**
+     * Delete every target, the next frame creates them again at the new size.
+     */
+    public void reshape() {
+        releaseAll();
+        warm = false;
+    }
+
+    public void dispose() {
+        releaseAll();
+    }
+
+    private void releaseAll() {
+        for (RenderTarget target : allocated) {
+            resources.release(GpuResources.Category.TEXTURE, target.texture);
+        }
+        allocated.clear();
+        free.clear();
+        cache.invalidateTextures(); // Deleted names can come back from glGenTextures
+    }
+
+    private static long key(int width, int height, int format) {
+        return ((long) format << 40) | ((long) width << 20) | height;
+    }
+
+    private static int bytesPerTexel(int format) {
+        switch (format) {
+            case GL_RGBA16F:
+                return 8;
+            case GL_RGBA32F:
+                return 16;
+            default:
+                return 4; // RGBA8, R32F, DEPTH_COMPONENT24 padded to 32 bits
+        }
+    }
+}
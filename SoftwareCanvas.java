@@ -0,0 +1,42 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows the frames SoftwareRenderer draws. The render thread calls present()
+ * after each frame, which paints on the event thread and waits for it, so
+ * the renderer can start the next frame in the same image straight away.
+ */
+public class SoftwareCanvas extends JPanel {
+    private BufferedImage frame;
+
+    public SoftwareCanvas() {
+        setDoubleBuffered(false); // The frame is already complete when it is painted
+    }
+
+    /**
+     * Paint a finished frame and wait until it is on screen.
+     */
+    public void present(BufferedImage image) throws InterruptedException {
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                frame = image;
+                paintImmediately(0, 0, getWidth(), getHeight());
+            });
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (frame == null) {
+            super.paintComponent(g);
+            return;
+        }
+        g.drawImage(frame, 0, 0, null);
+    }
+}
@@ -0,0 +1,417 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix4f;
+
+/**
+ * CPU rasterizer for hosts without a GPU, drawing the same triangles the GL
+ * path draws into a BufferedImage.
+ *
+ * Triangles are transformed, clipped against the near plane, back face culled
+ * and set up on the calling thread, then binned into 64x64 pixel tiles. The
+ * tiles are rasterized in parallel on the common fork/join pool, each owning
+ * its own pixels of the color and depth buffers, so no locking is needed.
+ * Texture coordinates are interpolated perspective correct and the mip level
+ * comes from their screen space derivatives, as in GL. Depth testing matches
+ * the GL path's GL_LEQUAL against a buffer cleared to 1.
+ *
+ * Usage per frame: begin(), draw() each mesh, finish().
+ */
+public class SoftwareRenderer {
+    private static final int TILE_SIZE = 64;
+
+    // Per triangle setup: three edge functions, then z, 1/w, s/w and t/w, each as a*x + b*y + c
+    private static final int EDGES = 0;
+    private static final int Z = 9;
+    private static final int INVERSE_W = 12;
+    private static final int S_OVER_W = 15;
+    private static final int T_OVER_W = 18;
+    private static final int SETUP_SIZE = 21;
+
+    private int width, height;
+    private int tilesX, tilesY;
+    private BufferedImage image;
+    private int[] color;
+    private float[] depth;
+    private int clearColor;
+
+    // Triangles set up this frame
+    private int triangleCount;
+    private double[] setup = new double[64 * SETUP_SIZE];
+    private int[] bounds = new int[64 * 4]; // Pixel bounding box: minX, minY, maxX, maxY
+    private SoftwareTexture[] textures = new SoftwareTexture[64];
+
+    // Triangle indices overlapping each tile, in submission order
+    private int[][] bins;
+    private int[] binSizes;
+
+    // Scratch space for transforming and clipping one triangle
+    private final Matrix4f mvp = new Matrix4f();
+    private final float[] clip = new float[4 * 3]; // x, y, z, w per vertex
+    private final float[] clipST = new float[2 * 3];
+    private final float[] clipped = new float[4 * 6];
+    private final float[] clippedST = new float[2 * 6];
+    private final double[] screenX = new double[3], screenY = new double[3], screenZ = new double[3];
+    private final double[] screenInverseW = new double[3], screenS = new double[3], screenT = new double[3];
+
+    public SoftwareRenderer(int width, int height) {
+        resize(width, height);
+    }
+
+    /**
+     * Reallocate the color and depth buffers for a new output size.
+     */
+    public void resize(int width, int height) {
+        this.width = Math.max(1, width);
+        this.height = Math.max(1, height);
+        this.tilesX = (this.width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (this.height + TILE_SIZE - 1) / TILE_SIZE;
+        this.image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        this.color = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.depth = new float[this.width * this.height];
+        this.bins = new int[tilesX * tilesY][16];
+        this.binSizes = new int[tilesX * tilesY];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the image finish() renders into, reused every frame
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Start a frame.
+     *
+     * @param clearColor RGB color of pixels nothing is drawn on
+     */
+    public void begin(int clearColor) {
+        this.clearColor = clearColor;
+        this.triangleCount = 0;
+    }
+
+    /**
+     * Transform and set up a triangle list, the equivalent of a glDrawArrays
+     * of GL_TRIANGLES.
+     *
+     * @param positions      x, y, z per vertex
+     * @param textureCoords  s, t per vertex
+     * @param modelView      model view matrix
+     * @param perspective    projection matrix
+     * @param texture        texture sampled across the mesh
+     */
+    public void draw(float[] positions, float[] textureCoords, Matrix4f modelView, Matrix4f perspective,
+            SoftwareTexture texture) {
+        perspective.mul(modelView, mvp);
+        int vertexCount = positions.length / 3;
+        for (int first = 0; first + 2 < vertexCount; first += 3) {
+            for (int v = 0; v < 3; v++) {
+                float x = positions[(first + v) * 3];
+                float y = positions[(first + v) * 3 + 1];
+                float z = positions[(first + v) * 3 + 2];
+                clip[v * 4] = mvp.m00() * x + mvp.m10() * y + mvp.m20() * z + mvp.m30();
+                clip[v * 4 + 1] = mvp.m01() * x + mvp.m11() * y + mvp.m21() * z + mvp.m31();
+                clip[v * 4 + 2] = mvp.m02() * x + mvp.m12() * y + mvp.m22() * z + mvp.m32();
+                clip[v * 4 + 3] = mvp.m03() * x + mvp.m13() * y + mvp.m23() * z + mvp.m33();
+                clipST[v * 2] = textureCoords[(first + v) * 2];
+                clipST[v * 2 + 1] = textureCoords[(first + v) * 2 + 1];
+            }
+            if (outsideFrustum()) {
+                continue;
+            }
+            int count = clipNear();
+            for (int v = 2; v < count; v++) {
+                setUpTriangle(0, v - 1, v, texture); // Fan out the clipped polygon
+            }
+        }
+    }
+
+    /**
+     * @return true if all three vertices are outside the same frustum plane
+     */
+    private boolean outsideFrustum() {
+        for (int axis = 0; axis < 3; axis++) {
+            boolean allAbove = true, allBelow = true;
+            for (int v = 0; v < 3; v++) {
+                float coordinate = clip[v * 4 + axis];
+                float w = clip[v * 4 + 3];
+                allAbove &= coordinate > w;
+                allBelow &= coordinate < -w;
+            }
+            if (allAbove || allBelow) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Clip the triangle in clip/clipST against z = -w into clipped/clippedST.
+     * The other planes are left to the pixel bounding box and depth test.
+     *
+     * @return vertices in the clipped polygon, 0, 3 or 4
+     */
+    private int clipNear() {
+        int count = 0;
+        for (int v = 0; v < 3; v++) {
+            int next = (v + 1) % 3;
+            float distance = clip[v * 4 + 2] + clip[v * 4 + 3];
+            float nextDistance = clip[next * 4 + 2] + clip[next * 4 + 3];
+            if (distance >= 0) {
+                interpolateVertex(v, next, 0f, count++);
+            }
+            if ((distance >= 0) != (nextDistance >= 0)) {
+                interpolateVertex(v, next, distance / (distance - nextDistance), count++); // Where the edge crosses
+            }
+        }
+        return count < 3 ? 0 : count;
+    }
+
+    /**
+     * Write the point a fraction of the way from one input vertex to another
+     * into the clipped polygon.
+     */
+    private void interpolateVertex(int from, int to, float fraction, int index) {
+        for (int i = 0; i < 4; i++) {
+            clipped[index * 4 + i] = clip[from * 4 + i] + (clip[to * 4 + i] - clip[from * 4 + i]) * fraction;
+        }
+        for (int i = 0; i < 2; i++) {
+            clippedST[index * 2 + i] = clipST[from * 2 + i]
+                    + (clipST[to * 2 + i] - clipST[from * 2 + i]) * fraction;
+        }
+    }
+
+    /**
+     * Project a triangle of the clipped polygon to the screen, cull it if it
+     * faces away and store its edge and interpolation planes.
+     */
+    private void setUpTriangle(int a, int b, int c, SoftwareTexture texture) {
+        double[] x = screenX, y = screenY, z = screenZ, inverseW = screenInverseW, s = screenS, t = screenT;
+        for (int i = 0; i < 3; i++) {
+            int v = i == 0 ? a : i == 1 ? b : c;
+            double w = clipped[v * 4 + 3];
+            inverseW[i] = 1.0 / w;
+            x[i] = (clipped[v * 4] * inverseW[i] * 0.5 + 0.5) * width;
+            y[i] = (0.5 - clipped[v * 4 + 1] * inverseW[i] * 0.5) * height; // Rows run down the image
+            z[i] = clipped[v * 4 + 2] * inverseW[i];
+            s[i] = clippedST[v * 2] * inverseW[i];
+            t[i] = clippedST[v * 2 + 1] * inverseW[i];
+        }
+
+        // Counter clockwise in GL's y up window space is clockwise here, a negative area
+        double area = (x[1] - x[0]) * (y[2] - y[0]) - (x[2] - x[0]) * (y[1] - y[0]);
+        if (area >= 0) {
+            return; // Back facing or degenerate, as GL_CULL_FACE would
+        }
+        // Swap two vertices so the edge functions are positive inside
+        swap(x, 1, 2);
+        swap(y, 1, 2);
+        swap(z, 1, 2);
+        swap(inverseW, 1, 2);
+        swap(s, 1, 2);
+        swap(t, 1, 2);
+        area = -area;
+
+        int minX = Math.max(0, (int) Math.floor(Math.min(x[0], Math.min(x[1], x[2]))));
+        int minY = Math.max(0, (int) Math.floor(Math.min(y[0], Math.min(y[1], y[2]))));
+        int maxX = Math.min(width - 1, (int) Math.ceil(Math.max(x[0], Math.max(x[1], x[2]))));
+        int maxY = Math.min(height - 1, (int) Math.ceil(Math.max(y[0], Math.max(y[1], y[2]))));
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+
+        if (triangleCount == textures.length) {
+            setup = Arrays.copyOf(setup, setup.length * 2);
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            textures = Arrays.copyOf(textures, textures.length * 2);
+        }
+        int base = triangleCount * SETUP_SIZE;
+        for (int edge = 0; edge < 3; edge++) {
+            int from = (edge + 1) % 3;
+            int to = (edge + 2) % 3;
+            // Positive on the side of the edge facing the opposite vertex
+            double edgeA = y[from] - y[to];
+            double edgeB = x[to] - x[from];
+            setup[base + EDGES + edge * 3] = edgeA;
+            setup[base + EDGES + edge * 3 + 1] = edgeB;
+            setup[base + EDGES + edge * 3 + 2] = -(edgeA * x[from] + edgeB * y[from]);
+        }
+        setPlane(base + Z, x, y, z, area);
+        setPlane(base + INVERSE_W, x, y, inverseW, area);
+        setPlane(base + S_OVER_W, x, y, s, area);
+        setPlane(base + T_OVER_W, x, y, t, area);
+
+        bounds[triangleCount * 4] = minX;
+        bounds[triangleCount * 4 + 1] = minY;
+        bounds[triangleCount * 4 + 2] = maxX;
+        bounds[triangleCount * 4 + 3] = maxY;
+        textures[triangleCount] = texture;
+        triangleCount++;
+    }
+
+    /**
+     * Store the plane a * x + b * y + c through the three vertex values.
+     */
+    private void setPlane(int offset, double[] x, double[] y, double[] value, double area) {
+        double dx1 = x[1] - x[0], dy1 = y[1] - y[0];
+        double dx2 = x[2] - x[0], dy2 = y[2] - y[0];
+        double dv1 = value[1] - value[0], dv2 = value[2] - value[0];
+        double a = (dv1 * dy2 - dv2 * dy1) / area;
+        double b = (dx1 * dv2 - dx2 * dv1) / area;
+        setup[offset] = a;
+        setup[offset + 1] = b;
+        setup[offset + 2] = value[0] - a * x[0] - b * y[0];
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        double swap = values[i];
+        values[i] = values[j];
+        values[j] = swap;
+    }
+
+    /**
+     * Bin the frame's triangles and rasterize every tile in parallel.
+     */
+    public void finish() {
+        Arrays.fill(binSizes, 0);
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            int firstX = bounds[triangle * 4] / TILE_SIZE;
+            int firstY = bounds[triangle * 4 + 1] / TILE_SIZE;
+            int lastX = bounds[triangle * 4 + 2] / TILE_SIZE;
+            int lastY = bounds[triangle * 4 + 3] / TILE_SIZE;
+            for (int tileY = firstY; tileY <= lastY; tileY++) {
+                for (int tileX = firstX; tileX <= lastX; tileX++) {
+                    int tile = tileY * tilesX + tileX;
+                    if (binSizes[tile] == bins[tile].length) {
+                        bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+                    }
+                    bins[tile][binSizes[tile]++] = triangle;
+                }
+            }
+        }
+        ForkJoinPool.commonPool().invoke(new TileTask(0, tilesX * tilesY));
+    }
+
+    private class TileTask extends RecursiveAction {
+        private final int from, to;
+
+        TileTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                rasterizeTile(from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileTask(from, middle), new TileTask(middle, to));
+        }
+    }
+
+    private void rasterizeTile(int tile) {
+        int tileMinX = (tile % tilesX) * TILE_SIZE;
+        int tileMinY = (tile / tilesX) * TILE_SIZE;
+        int tileMaxX = Math.min(width, tileMinX + TILE_SIZE) - 1;
+        int tileMaxY = Math.min(height, tileMinY + TILE_SIZE) - 1;
+
+        for (int py = tileMinY; py <= tileMaxY; py++) {
+            Arrays.fill(color, py * width + tileMinX, py * width + tileMaxX + 1, clearColor);
+            Arrays.fill(depth, py * width + tileMinX, py * width + tileMaxX + 1, 1f);
+        }
+
+        int[] bin = bins[tile];
+        for (int i = 0; i < binSizes[tile]; i++) {
+            int triangle = bin[i];
+            int minX = Math.max(tileMinX, bounds[triangle * 4]);
+            int minY = Math.max(tileMinY, bounds[triangle * 4 + 1]);
+            int maxX = Math.min(tileMaxX, bounds[triangle * 4 + 2]);
+            int maxY = Math.min(tileMaxY, bounds[triangle * 4 + 3]);
+            if (minX <= maxX && minY <= maxY) {
+                rasterizeTriangle(triangle, minX, minY, maxX, maxY);
+            }
+        }
+    }
+
+    /**
+     * Fill the covered pixels of a triangle inside a rectangle of one tile,
+     * sampling at pixel centres.
+     */
+    private void rasterizeTriangle(int triangle, int minX, int minY, int maxX, int maxY) {
+        double[] p = setup;
+        int base = triangle * SETUP_SIZE;
+        double a0 = p[base], a1 = p[base + 3], a2 = p[base + 6];
+        double za = p[base + Z], zb = p[base + Z + 1], zc = p[base + Z + 2];
+        double qa = p[base + INVERSE_W], qb = p[base + INVERSE_W + 1], qc = p[base + INVERSE_W + 2];
+        double sa = p[base + S_OVER_W], sb = p[base + S_OVER_W + 1], sc = p[base + S_OVER_W + 2];
+        double ta = p[base + T_OVER_W], tb = p[base + T_OVER_W + 1], tc = p[base + T_OVER_W + 2];
+        SoftwareTexture texture = textures[triangle];
+        float textureWidth = texture.getWidth();
+        float textureHeight = texture.getHeight();
+
+        double startX = minX + 0.5;
+        for (int py = minY; py <= maxY; py++) {
+            double centreY = py + 0.5;
+            double e0 = a0 * startX + p[base + 1] * centreY + p[base + 2];
+            double e1 = a1 * startX + p[base + 4] * centreY + p[base + 5];
+            double e2 = a2 * startX + p[base + 7] * centreY + p[base + 8];
+            double rowZ = za * startX + zb * centreY + zc;
+            double rowQ = qa * startX + qb * centreY + qc;
+            double rowS = sa * startX + sb * centreY + sc;
+            double rowT = ta * startX + tb * centreY + tc;
+
+            int index = py * width + minX;
+            for (int px = minX; px <= maxX; px++, index++) {
+                if (e0 >= 0 && e1 >= 0 && e2 >= 0) {
+                    float z = (float) rowZ;
+                    if (z <= depth[index]) {
+                        double w = 1.0 / rowQ;
+                        double s = rowS * w;
+                        double t = rowT * w;
+
+                        // Derivatives of s and t across the pixel pick the mip level
+                        float dsdx = (float) ((sa - s * qa) * w) * textureWidth;
+                        float dtdx = (float) ((ta - t * qa) * w) * textureHeight;
+                        float dsdy = (float) ((sb - s * qb) * w) * textureWidth;
+                        float dtdy = (float) ((tb - t * qb) * w) * textureHeight;
+                        float rho = Math.max(dsdx * dsdx + dtdx * dtdx, dsdy * dsdy + dtdy * dtdy);
+
+                        depth[index] = z;
+                        color[index] = texture.sample((float) s, (float) t, 0.5f * log2(rho));
+                    }
+                }
+                e0 += a0;
+                e1 += a1;
+                e2 += a2;
+                rowZ += za;
+                rowQ += qa;
+                rowS += sa;
+                rowT += ta;
+            }
+        }
+    }
+
+    /**
+     * Piecewise linear log2, exact at powers of two and within 0.09 elsewhere,
+     * which is plenty to blend between mip levels.
+     */
+    private static float log2(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int exponent = ((bits >>> 23) & 0xFF) - 127;
+        float mantissa = (bits & 0x7FFFFF) / (float) (1 << 23);
+        return exponent + mantissa;
+    }
+}
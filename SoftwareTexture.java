@@ -0,0 +1,185 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A hallway texture held in memory for SoftwareRenderer, with a box filtered
+ * mip chain. Texels are ARGB ints stored bottom row first, the same way
+ * TextureIO uploads them for the GL path, so the mesh's texture coordinates
+ * map to the same texels. Addressing repeats like GL_REPEAT and sampling is
+ * trilinear like GL_LINEAR_MIPMAP_LINEAR.
+ */
+public class SoftwareTexture {
+    private static final int MAX_VIRTUAL_SIZE = 2048; // Largest level stitched together from a tiled directory
+
+    private final int[][] levels;
+    private final int[] widths, heights;
+
+    private SoftwareTexture(int[] pixels, int width, int height) {
+        int count = 1;
+        while ((width >> count) > 0 || (height >> count) > 0) {
+            count++;
+        }
+        levels = new int[count][];
+        widths = new int[count];
+        heights = new int[count];
+        levels[0] = pixels;
+        widths[0] = width;
+        heights[0] = height;
+        for (int level = 1; level < count; level++) {
+            widths[level] = Math.max(1, width >> level);
+            heights[level] = Math.max(1, height >> level);
+            levels[level] = downsample(levels[level - 1], widths[level - 1], heights[level - 1], widths[level],
+                    heights[level]);
+        }
+    }
+
+    /**
+     * Load an image file, or a directory written by VirtualTextureTiler.
+     */
+    public static SoftwareTexture load(String textureFileName) throws IOException {
+        if (VirtualTexture.isVirtualTexture(textureFileName)) {
+            return loadTiled(new File(textureFileName));
+        }
+        BufferedImage image = ImageIO.read(new File(textureFileName));
+        if (image == null) {
+            throw new IOException("Unreadable image " + textureFileName);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, height - 1 - y, width, 1, pixels, y * width, width);
+        }
+        return new SoftwareTexture(pixels, width, height);
+    }
+
+    /**
+     * Stitch the finest level that fits in MAX_VIRTUAL_SIZE back together. The
+     * tiles are already bottom row first.
+     */
+    private static SoftwareTexture loadTiled(File directory) throws IOException {
+        Properties info = VirtualTextureTiler.readInfo(directory);
+        int size = Integer.parseInt(info.getProperty("size"));
+        int tileSize = Integer.parseInt(info.getProperty("tileSize"));
+        int border = Integer.parseInt(info.getProperty("border"));
+        int levelCount = Integer.parseInt(info.getProperty("levels"));
+
+        int level = 0;
+        while (level < levelCount - 1 && (size >> level) > MAX_VIRTUAL_SIZE) {
+            level++;
+        }
+        int tiles = Math.max(1, (size / tileSize) >> level);
+        int levelSize = tiles * tileSize;
+        int[] pixels = new int[levelSize * levelSize];
+        for (int tileY = 0; tileY < tiles; tileY++) {
+            for (int tileX = 0; tileX < tiles; tileX++) {
+                File tileFile = VirtualTextureTiler.tileFile(directory, level, tileX, tileY);
+                BufferedImage tile = ImageIO.read(tileFile);
+                if (tile == null) {
+                    throw new IOException("Unreadable tile " + tileFile);
+                }
+                for (int y = 0; y < tileSize; y++) {
+                    tile.getRGB(border, border + y, tileSize, 1, pixels,
+                            (tileY * tileSize + y) * levelSize + tileX * tileSize, levelSize);
+                }
+            }
+        }
+        return new SoftwareTexture(pixels, levelSize, levelSize);
+    }
+
+    public int getWidth() {
+        return widths[0];
+    }
+
+    public int getHeight() {
+        return heights[0];
+    }
+
+    /**
+     * Trilinear sample.
+     *
+     * @param s   horizontal texture coordinate, repeats
+     * @param t   vertical texture coordinate, repeats
+     * @param lod mip level of detail, log2 of texels per pixel
+     * @return ARGB color
+     */
+    public int sample(float s, float t, float lod) {
+        if (lod <= 0f) {
+            return bilinear(0, s, t);
+        }
+        int last = levels.length - 1;
+        if (lod >= last) {
+            return bilinear(last, s, t);
+        }
+        int level = (int) lod;
+        int weight = (int) ((lod - level) * 256f);
+        return lerp(bilinear(level, s, t), bilinear(level + 1, s, t), weight);
+    }
+
+    private int bilinear(int level, float s, float t) {
+        int width = widths[level];
+        int height = heights[level];
+        int[] texels = levels[level];
+
+        // Repeat into [0, 1) first so only the edge texels need wrapping. Texel
+        // centres sit at half integers, as in GL.
+        float x = (s - (float) Math.floor(s)) * width - 0.5f;
+        float y = (t - (float) Math.floor(t)) * height - 0.5f;
+        int x0 = x < 0f ? -1 : (int) x;
+        int y0 = y < 0f ? -1 : (int) y;
+        int fx = (int) ((x - x0) * 256f);
+        int fy = (int) ((y - y0) * 256f);
+        int x1 = x0 + 1 < width ? x0 + 1 : 0;
+        int y1 = y0 + 1 < height ? y0 + 1 : 0;
+        x0 = x0 < 0 ? width - 1 : x0;
+        y0 = y0 < 0 ? height - 1 : y0;
+
+        int row0 = y0 * width;
+        int row1 = y1 * width;
+        int top = lerp(texels[row0 + x0], texels[row0 + x1], fx);
+        int bottom = lerp(texels[row1 + x0], texels[row1 + x1], fx);
+        return lerp(top, bottom, fy);
+    }
+
+    /**
+     * Blend two ARGB colors, two channels at a time.
+     *
+     * @param weight 0 for a, 256 for b
+     */
+    private static int lerp(int a, int b, int weight) {
+        int inverse = 256 - weight;
+        int redBlue = (((a & 0xFF00FF) * inverse + (b & 0xFF00FF) * weight) >>> 8) & 0xFF00FF;
+        int alphaGreen = (((a >>> 8) & 0xFF00FF) * inverse + ((b >>> 8) & 0xFF00FF) * weight) & 0xFF00FF00;
+        return alphaGreen | redBlue;
+    }
+
+    /**
+     * Box filter a level down, averaging whichever of the 2x2 source texels
+     * exist when a side is odd or already 1.
+     */
+    private static int[] downsample(int[] pixels, int width, int height, int halfWidth, int halfHeight) {
+        int[] result = new int[halfWidth * halfHeight];
+        for (int y = 0; y < halfHeight; y++) {
+            int y0 = Math.min(2 * y, height - 1);
+            int y1 = Math.min(2 * y + 1, height - 1);
+            for (int x = 0; x < halfWidth; x++) {
+                int x0 = Math.min(2 * x, width - 1);
+                int x1 = Math.min(2 * x + 1, width - 1);
+                int a = pixels[y0 * width + x0], b = pixels[y0 * width + x1];
+                int c = pixels[y1 * width + x0], d = pixels[y1 * width + x1];
+                int argb = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF)
+                            + ((d >>> shift) & 0xFF);
+                    argb |= ((sum + 2) / 4) << shift;
+                }
+                result[y * halfWidth + x] = argb;
+            }
+        }
+        return result;
+    }
+}
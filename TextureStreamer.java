@@ -0,0 +1,340 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+ * Loads textures without blocking the render thread. request() hands back a
+ * texture id straight away that shows a 1x1 placeholder. The image is decoded
+ * and its mip chain built on a background thread, then update() copies it in
+ * through a pixel buffer object a bounded number of bytes per frame, smallest
+ * mip first. Each level is only defined when its upload starts, so the
+ * allocations are spread over frames like the copies. The placeholder stays
+ * in level 0 and stays the only level sampled until the smallest level of
+ * the image has fully arrived; from then on GL_TEXTURE_BASE_LEVEL is moved
+ * down as each level completes, so the texture sharpens progressively and
+ * never samples a level that is not complete. Level 0 is replaced last,
+ * when nothing samples it.
+ *
+ * The per frame budget is set with -Dcorridor.texture.uploadBudget=BYTES
+ * (default 1 MiB).
+ */
+public class TextureStreamer {
+    private static final int DEFAULT_UPLOAD_BUDGET = 1 << 20;
+    private static final byte[] PLACEHOLDER = { (byte) 128, (byte) 128, (byte) 128, (byte) 255 }; // Mid grey
+
+    private final GpuResources resources;
+    private final Consumer<String> failureHandler;
+    private final int uploadBudget;
+    private final ExecutorService decoder;
+    private final ConcurrentLinkedQueue<DecodedImage> decoded = new ConcurrentLinkedQueue<>();
+    private final List<Upload> uploads = new ArrayList<>(); // Render thread only
+    private final int[] pixelBuffer = new int[1];
+
+    /**
+     * A texture whose mip chain is ready in memory. Level 0 is the full image.
+     */
+    private static class DecodedImage {
+        final int textureID;
+        final String fileName;
+        final long requestTime;
+        final int[] widths, heights;
+        final byte[][] levels;
+        final String error;
+
+        DecodedImage(int textureID, String fileName, long requestTime, int[] widths, int[] heights,
+                byte[][] levels, String error) {
+            this.textureID = textureID;
+            this.fileName = fileName;
+            this.requestTime = requestTime;
+            this.widths = widths;
+            this.heights = heights;
+            this.levels = levels;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Upload progress of one texture, smallest level first.
+     */
+    private static class Upload {
+        final DecodedImage image;
+        int level; // Level being uploaded
+        int row; // Next row of that level
+        long bytes = PLACEHOLDER.length; // Texture memory defined so far
+
+        Upload(DecodedImage image) {
+            this.image = image;
+            this.level = image.levels.length - 1;
+        }
+    }
+
+    /**
+     * @param resources      registry the textures and PBO are tracked in
+     * @param failureHandler told the file name of any texture that can not be read
+     */
+    public TextureStreamer(GpuResources resources, Consumer<String> failureHandler) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        this.resources = resources;
+        this.failureHandler = failureHandler;
+        this.uploadBudget = Math.max(4096, Integer.getInteger("corridor.texture.uploadBudget", DEFAULT_UPLOAD_BUDGET));
+        this.decoder = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "texture-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        gl.glGenBuffers(1, pixelBuffer, 0);
+        resources.track(GpuResources.Category.BUFFER, pixelBuffer[0], uploadBudget, "texture upload PBO");
+    }
+
+    /**
+     * Create a texture showing the placeholder and start decoding the file.
+     *
+     * @return texture id, valid immediately
+     */
+    public int request(String fileName) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int[] textureIDs = new int[1];
+        gl.glGenTextures(1, textureIDs, 0);
+        int textureID = resources.track(GpuResources.Category.TEXTURE, textureIDs[0], PLACEHOLDER.length, fileName);
+        gl.glBindTexture(GL_TEXTURE_2D, textureID);
+        gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, 1, 1, 0, GL_RGBA, GL_UNSIGNED_BYTE, ByteBuffer.wrap(PLACEHOLDER));
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 0);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+
+        long requestTime = System.nanoTime();
+        decoder.execute(() -> decoded.add(decode(textureID, fileName, requestTime)));
+        return textureID;
+    }
+
+    /**
+     * @return true while any texture is still decoding or uploading
+     */
+    public boolean isBusy() {
+        return !uploads.isEmpty() || !decoded.isEmpty();
+    }
+
+    /**
+     * Upload at most the byte budget of pending texture data. Call once per
+     * frame on the render thread.
+     */
+    public void update() {
+        DecodedImage image;
+        while ((image = decoded.poll()) != null) {
+            if (image.error != null) {
+                System.out.println("Could not read texture " + image.fileName + ": " + image.error);
+                failureHandler.accept(image.fileName);
+            } else {
+                uploads.add(new Upload(image));
+            }
+        }
+        if (uploads.isEmpty()) {
+            return;
+        }
+
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBuffer[0]);
+        int budget = uploadBudget;
+        Iterator<Upload> pending = uploads.iterator();
+        while (budget > 0 && pending.hasNext()) {
+            Upload upload = pending.next();
+            budget = uploadRows(gl, upload, budget);
+            if (upload.level < 0) {
+                pending.remove();
+                finish(upload.image);
+            }
+        }
+        gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    public void dispose() {
+        decoder.shutdownNow();
+        decoded.clear();
+        uploads.clear();
+        resources.release(GpuResources.Category.BUFFER, pixelBuffer[0]);
+    }
+
+    /**
+     * Define the storage of the level an upload is starting. The pixel unpack
+     * buffer is unbound around the call, otherwise GL would read the level's
+     * contents from it.
+     */
+    private void allocateLevel(GL4 gl, Upload upload) {
+        DecodedImage image = upload.image;
+        int width = image.widths[upload.level];
+        int height = image.heights[upload.level];
+        gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        gl.glTexImage2D(GL_TEXTURE_2D, upload.level, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+        gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBuffer[0]);
+        upload.bytes += (long) width * height * 4 - (upload.level == 0 ? PLACEHOLDER.length : 0);
+        resources.resize(GpuResources.Category.TEXTURE, image.textureID, upload.bytes);
+    }
+
+    /**
+     * Switch sampling from the placeholder to the image's mip chain, once its
+     * smallest level is complete.
+     */
+    private void showImage(GL4 gl, int top) {
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, top);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        if (gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic")) {
+            float anisoset[] = new float[1];
+            gl.glGetFloatv(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, anisoset, 0);
+            gl.glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, anisoset[0]);
+        }
+    }
+
+    /**
+     * Copy as many rows of the current level as the budget allows through the
+     * PBO, moving on to the next larger level when one completes.
+     *
+     * @return budget left over
+     */
+    private int uploadRows(GL4 gl, Upload upload, int budget) {
+        DecodedImage image = upload.image;
+        int width = image.widths[upload.level];
+        int height = image.heights[upload.level];
+        int rowBytes = width * 4;
+        int rows = Math.min(height - upload.row, Math.max(1, budget / rowBytes));
+        int bytes = rows * rowBytes;
+
+        gl.glBindTexture(GL_TEXTURE_2D, image.textureID);
+        if (upload.row == 0) {
+            allocateLevel(gl, upload);
+        }
+
+        // Orphan the previous contents so the driver never waits on an upload in flight
+        gl.glBufferData(GL_PIXEL_UNPACK_BUFFER, Math.max(bytes, uploadBudget), null, GL_STREAM_DRAW);
+        ByteBuffer mapped = gl.glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytes,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped != null) {
+            mapped.put(image.levels[upload.level], upload.row * rowBytes, bytes);
+            gl.glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+            gl.glTexSubImage2D(GL_TEXTURE_2D, upload.level, 0, upload.row, width, rows, GL_RGBA, GL_UNSIGNED_BYTE,
+                    0);
+        } else {
+            // Mapping failed, copy these rows from client memory so the texture still finishes
+            gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+            gl.glTexSubImage2D(GL_TEXTURE_2D, upload.level, 0, upload.row, width, rows, GL_RGBA, GL_UNSIGNED_BYTE,
+                    ByteBuffer.wrap(image.levels[upload.level], upload.row * rowBytes, bytes));
+            gl.glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBuffer[0]);
+        }
+
+        upload.row += rows;
+        if (upload.row == height) {
+            // Level complete, let the sampler use it
+            if (upload.level == image.levels.length - 1) {
+                showImage(gl, upload.level);
+            }
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, upload.level);
+            image.levels[upload.level] = null;
+            upload.level--;
+            upload.row = 0;
+        }
+        return budget - bytes;
+    }
+
+    private void finish(DecodedImage image) {
+        CorridorEvents.TextureLoadEvent loadEvent = new CorridorEvents.TextureLoadEvent();
+        loadEvent.file = image.fileName;
+        loadEvent.width = image.widths[0];
+        loadEvent.height = image.heights[0];
+        for (int level = 0; level < image.widths.length; level++) {
+            loadEvent.bytes += (long) image.widths[level] * image.heights[level] * 4;
+        }
+        loadEvent.streamTime = System.nanoTime() - image.requestTime;
+        loadEvent.success = true;
+        loadEvent.commit();
+    }
+
+    /**
+     * Read the image and build its mip chain. Runs on the decoder thread.
+     */
+    private static DecodedImage decode(int textureID, String fileName, long requestTime) {
+        BufferedImage img;
+        try {
+            img = ImageIO.read(new File(fileName));
+            if (img == null) {
+                throw new IOException("unsupported image format");
+            }
+        } catch (IOException e) {
+            return new DecodedImage(textureID, fileName, requestTime, null, null, null, e.toString());
+        }
+
+        int levelCount = 1;
+        for (int size = Math.max(img.getWidth(), img.getHeight()); size > 1; size /= 2) {
+            levelCount++;
+        }
+        int[] widths = new int[levelCount];
+        int[] heights = new int[levelCount];
+        byte[][] levels = new byte[levelCount][];
+        widths[0] = img.getWidth();
+        heights[0] = img.getHeight();
+        levels[0] = toRGBA(img);
+        for (int level = 1; level < levelCount; level++) {
+            widths[level] = Math.max(1, widths[level - 1] / 2);
+            heights[level] = Math.max(1, heights[level - 1] / 2);
+            levels[level] = downsample(levels[level - 1], widths[level - 1], heights[level - 1], widths[level],
+                    heights[level]);
+        }
+        return new DecodedImage(textureID, fileName, requestTime, widths, heights, levels, null);
+    }
+
+    /**
+     * RGBA bytes with the bottom row first, the same orientation TextureIO
+     * gives the synchronous loader.
+     */
+    private static byte[] toRGBA(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] argb = img.getRGB(0, 0, width, height, null, 0, width);
+        byte[] rgba = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            int src = (height - 1 - y) * width;
+            int dst = y * width * 4;
+            for (int x = 0; x < width; x++) {
+                int p = argb[src + x];
+                rgba[dst++] = (byte) (p >>> 16);
+                rgba[dst++] = (byte) (p >>> 8);
+                rgba[dst++] = (byte) p;
+                rgba[dst++] = (byte) (p >>> 24);
+            }
+        }
+        return rgba;
+    }
+
+    /**
+     * 2x2 box filter, clamping at the edges of odd sized levels.
+     */
+    private static byte[] downsample(byte[] src, int srcWidth, int srcHeight, int width, int height) {
+        byte[] dst = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            int y0 = Math.min(2 * y, srcHeight - 1);
+            int y1 = Math.min(2 * y + 1, srcHeight - 1);
+            for (int x = 0; x < width; x++) {
+                int x0 = Math.min(2 * x, srcWidth - 1);
+                int x1 = Math.min(2 * x + 1, srcWidth - 1);
+                for (int c = 0; c < 4; c++) {
+                    int sum = (src[(y0 * srcWidth + x0) * 4 + c] & 0xFF) + (src[(y0 * srcWidth + x1) * 4 + c] & 0xFF)
+                            + (src[(y1 * srcWidth + x0) * 4 + c] & 0xFF) + (src[(y1 * srcWidth + x1) * 4 + c] & 0xFF);
+                    dst[(y * width + x) * 4 + c] = (byte) ((sum + 2) / 4);
+                }
+            }
+        }
+        return dst;
+    }
+}
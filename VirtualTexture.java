@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * A texture tiled by VirtualTextureTiler. Only the tiles the feedback pass asks
+ * for are kept in the shared page cache; this class tracks which of its tiles
+ * are resident and owns the indirection texture the fragment shader uses to
+ * find them.
+ *
+ * Indirection texel (x, y) of mip level L holds the cache page (R, G) and the
+ * level of the tile in that page (B). When a tile is not resident the texel
+ * points at the closest resident ancestor instead, so there is always
+ * something to sample.
+ */
+public class VirtualTexture {
+    private final int id; // Written to the feedback buffer, 1 based so 0 means no virtual texture
+    private final File directory;
+    private final int size; // Width and height of level 0 in texels
+    private final int tileSize;
+    private final int border;
+    private final int levels;
+    private final int tilesPerSide; // Tiles per side at level 0
+
+    private final int[][] residentPages; // Page index + 1 per tile per level, 0 when not resident
+    private final int[][] entries; // Packed indirection entries per level
+    private final ByteBuffer uploadBuffer;
+    private int indirectionTexture;
+    private boolean dirty = true;
+
+    private VirtualTexture(int id, File directory, Properties info) {
+        this.id = id;
+        this.directory = directory;
+        this.size = Integer.parseInt(info.getProperty("size"));
+        this.tileSize = Integer.parseInt(info.getProperty("tileSize"));
+        this.border = Integer.parseInt(info.getProperty("border"));
+        this.levels = Integer.parseInt(info.getProperty("levels"));
+        this.tilesPerSide = size / tileSize;
+
+        this.residentPages = new int[levels][];
+        this.entries = new int[levels][];
+        for (int level = 0; level < levels; level++) {
+            int tiles = tilesAt(level);
+            residentPages[level] = new int[tiles * tiles];
+            entries[level] = new int[tiles * tiles];
+        }
+        this.uploadBuffer = Buffers.newDirectByteBuffer(tilesPerSide * tilesPerSide * 4);
+    }
+
+    /**
+     * @param directory output of VirtualTextureTiler
+     * @return true if the directory looks like a tiled virtual texture
+     */
+    public static boolean isVirtualTexture(String directory) {
+        return new File(directory, VirtualTextureTiler.INFO_FILE).isFile();
+    }
+
+    /**
+     * Read the tile description and create the indirection texture.
+     */
+    public static VirtualTexture open(int id, String directory, GpuResources resources) throws IOException {
+        Properties info = VirtualTextureTiler.readInfo(new File(directory));
+        VirtualTexture texture = new VirtualTexture(id, new File(directory), info);
+        texture.createIndirectionTexture(resources);
+        return texture;
+    }
+
+    private void createIndirectionTexture(GpuResources resources) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int[] textureIDs = new int[1];
+        gl.glGenTextures(1, textureIDs, 0);
+        indirectionTexture = resources.track(GpuResources.Category.TEXTURE, textureIDs[0], getIndirectionBytes(),
+                "indirection for " + directory);
+        gl.glBindTexture(GL_TEXTURE_2D, indirectionTexture);
+        gl.glTexStorage2D(GL_TEXTURE_2D, levels, GL_RGBA8, tilesPerSide, tilesPerSide);
+        // Entries are read with texelFetch, filtering would blend page coordinates
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getBorder() {
+        return border;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getTilesPerSide() {
+        return tilesPerSide;
+    }
+
+    public int getIndirectionTexture() {
+        return indirectionTexture;
+    }
+
+    /**
+     * @return bytes used by the indirection texture and its mips
+     */
+    public long getIndirectionBytes() {
+        return (long) tilesPerSide * tilesPerSide * 4 * 4 / 3;
+    }
+
+    public int tilesAt(int level) {
+        return Math.max(1, tilesPerSide >> level);
+    }
+
+    public File tileFile(int level, int x, int y) {
+        return VirtualTextureTiler.tileFile(directory, level, x, y);
+    }
+
+    public void setResident(int level, int x, int y, int page) {
+        residentPages[level][y * tilesAt(level) + x] = page + 1;
+        dirty = true;
+    }
+
+    public void clearResident(int level, int x, int y) {
+        residentPages[level][y * tilesAt(level) + x] = 0;
+        dirty = true;
+    }
+
+    /**
+     * Rebuild the indirection entries from the coarsest level down and upload
+     * them if residency changed since the last call.
+     *
+     * @param pagesPerSide width of the page cache in pages
+     * @return true if the texture was bound and uploaded
+     */
+    public boolean updateIndirection(int pagesPerSide) {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        gl.glBindTexture(GL_TEXTURE_2D, indirectionTexture);
+        for (int level = levels - 1; level >= 0; level--) {
+            int tiles = tilesAt(level);
+            int[] levelEntries = entries[level];
+            int[] levelPages = residentPages[level];
+            uploadBuffer.clear();
+            for (int y = 0; y < tiles; y++) {
+                for (int x = 0; x < tiles; x++) {
+                    int i = y * tiles + x;
+                    int entry;
+                    if (levelPages[i] != 0) {
+                        int page = levelPages[i] - 1;
+                        entry = (page % pagesPerSide) | ((page / pagesPerSide) << 8) | (level << 16) | (0xFF << 24);
+                    } else if (level + 1 < levels) {
+                        entry = entries[level + 1][(y / 2) * tilesAt(level + 1) + (x / 2)];
+                    } else {
+                        entry = 0; // Root not loaded yet
+                    }
+                    levelEntries[i] = entry;
+                    uploadBuffer.put((byte) entry).put((byte) (entry >>> 8)).put((byte) (entry >>> 16))
+                            .put((byte) (entry >>> 24));
+                }
+            }
+            uploadBuffer.flip();
+            gl.glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, tiles, tiles, GL_RGBA, GL_UNSIGNED_BYTE, uploadBuffer);
+        }
+        return true;
+    }
+}
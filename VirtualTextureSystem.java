@@ -0,0 +1,482 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.Matrix4f;
+
+/**
+ * Streams the tiles of every VirtualTexture into one fixed size page cache
+ * texture, so VRAM use depends on the cache size and not on the size of the
+ * source images.
+ *
+ * Each frame the scene is drawn a second time into a small feedback buffer
+ * that records which tile and mip level every pixel wants. The buffer is read
+ * back a frame later through a pixel buffer object, missing tiles are decoded
+ * on loader threads and a bounded number are copied into the cache per frame,
+ * evicting the least recently used pages. The coarsest tile of every texture
+ * is pinned so there is always a fallback.
+ *
+ * Cache size is set with -Dcorridor.vt.pages=N (pages per side, default 16).
+ */
+public class VirtualTextureSystem {
+    private static final String FEEDBACK_FRAGMENT_SHADER_FILE = "corridor-feedback-fragment.glsl";
+    private static final int FEEDBACK_DIVISOR = 8; // Feedback buffer is this many times smaller than the window
+    private static final int MAX_UPLOADS_PER_FRAME = 8;
+    private static final int LOADER_THREADS = 2;
+
+    private final int pagesPerSide;
+    private final int tileSize;
+    private final int border;
+    private final int pageSize; // Tile plus border on both sides
+    private final int cacheSize; // Width and height of the page cache in texels
+
+    private final List<VirtualTexture> textures = new ArrayList<>();
+    private final GpuResources resources;
+    private final GLStateCache cache;
+    private VirtualTexture boundTexture; // Texture whose uniforms the main program holds, null when not virtual
+
+    // Resident tiles in least recently used order, tile key -> page index
+    private final LinkedHashMap<Long, Integer> residentPages = new LinkedHashMap<>(64, 0.75f, true);
+    private final long[] pageKeys; // Tile key stored in each page, -1 when free
+    private final long[] pageLastUsed; // Frame the page was last requested, pinned pages use Long.MAX_VALUE
+    private int nextFreePage;
+
+    private final Set<Long> pendingTiles = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<LoadedTile> loadedTiles = new ConcurrentLinkedQueue<>();
+    private final ExecutorService loader;
+
+    private int pageTexture;
+    private int feedbackProgram;
+    private int[] feedbackFramebuffer = new int[1];
+    private int[] feedbackTextures = new int[2]; // Color and depth, recreated on reshape
+    private int[] readbackBuffers = new int[2]; // Ping pong PBOs
+    private int feedbackWidth, feedbackHeight;
+    private int viewportWidth, viewportHeight; // Drawable size in pixels, restored after the feedback pass
+    private boolean[] readbackPending = new boolean[2];
+    private long frame;
+
+    // Uniform locations
+    private int virtualTextureID, vtSizeID, vtTilesID, vtLevelsID, vtPageID;
+    private int feedbackMvID, feedbackPID, feedbackIdID, feedbackSizeID, feedbackTilesID, feedbackLevelsID,
+            feedbackBiasID;
+    private final FloatBuffer scratchBuffer = Buffers.newDirectFloatBuffer(16);
+
+    private static class LoadedTile {
+        final long key;
+        final ByteBuffer pixels;
+
+        LoadedTile(long key, ByteBuffer pixels) {
+            this.key = key;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * Create the page cache and feedback resources.
+     *
+     * @param renderingProgram main corridor program, used for its uniform locations
+     * @param vertexShaderFile vertex shader shared with the feedback program
+     * @param resources        registry the GL objects are tracked in
+     * @param cache            state cache the frame's bindings go through
+     */
+    public VirtualTextureSystem(int renderingProgram, String vertexShaderFile, GpuResources resources,
+            GLStateCache cache) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        this.resources = resources;
+        this.cache = cache;
+        this.pagesPerSide = Math.max(2, Math.min(255, Integer.getInteger("corridor.vt.pages", 16)));
+        this.tileSize = VirtualTextureTiler.TILE_SIZE;
+        this.border = VirtualTextureTiler.BORDER;
+        this.pageSize = tileSize + 2 * border;
+        this.cacheSize = pagesPerSide * pageSize;
+        this.pageKeys = new long[pagesPerSide * pagesPerSide];
+        this.pageLastUsed = new long[pagesPerSide * pagesPerSide];
+        Arrays.fill(pageKeys, -1);
+
+        this.loader = Executors.newFixedThreadPool(LOADER_THREADS, r -> {
+            Thread thread = new Thread(r, "virtual-texture-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Physical page cache, a single level sampled bilinearly inside each page
+        int[] textureIDs = new int[1];
+        gl.glGenTextures(1, textureIDs, 0);
+        pageTexture = resources.track(GpuResources.Category.TEXTURE, textureIDs[0], (long) cacheSize * cacheSize * 4,
+                "virtual texture page cache");
+        cache.bindTexture2D(1, pageTexture);
+        gl.glTexStorage2D(GL_TEXTURE_2D, 1, GL_RGBA8, cacheSize, cacheSize);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+        feedbackProgram = resources.track(GpuResources.Category.PROGRAM,
+                Utils.createShaderProgram(vertexShaderFile, FEEDBACK_FRAGMENT_SHADER_FILE), 0, "feedback program");
+        gl.glGenFramebuffers(1, feedbackFramebuffer, 0);
+        resources.track(GpuResources.Category.FRAMEBUFFER, feedbackFramebuffer[0], 0, "feedback framebuffer");
+        gl.glGenBuffers(2, readbackBuffers, 0);
+        for (int buffer : readbackBuffers) {
+            resources.track(GpuResources.Category.BUFFER, buffer, 0, "feedback readback PBO");
+        }
+
+        virtualTextureID = gl.glGetUniformLocation(renderingProgram, "virtualTexture");
+        vtSizeID = gl.glGetUniformLocation(renderingProgram, "vtSize");
+        vtTilesID = gl.glGetUniformLocation(renderingProgram, "vtTiles");
+        vtLevelsID = gl.glGetUniformLocation(renderingProgram, "vtLevels");
+        vtPageID = gl.glGetUniformLocation(renderingProgram, "vtPage");
+        feedbackMvID = gl.glGetUniformLocation(feedbackProgram, "mv_matrix");
+        feedbackPID = gl.glGetUniformLocation(feedbackProgram, "p_matrix");
+        feedbackIdID = gl.glGetUniformLocation(feedbackProgram, "vtId");
+        feedbackSizeID = gl.glGetUniformLocation(feedbackProgram, "vtSize");
+        feedbackTilesID = gl.glGetUniformLocation(feedbackProgram, "vtTiles");
+        feedbackLevelsID = gl.glGetUniformLocation(feedbackProgram, "vtLevels");
+        feedbackBiasID = gl.glGetUniformLocation(feedbackProgram, "feedbackBias");
+    }
+
+    /**
+     * Open a tiled texture and load its coarsest tile synchronously.
+     */
+    public VirtualTexture add(String directory) throws IOException {
+        if (textures.size() >= 255) {
+            throw new IOException("Too many virtual textures");
+        }
+        VirtualTexture texture = VirtualTexture.open(textures.size() + 1, directory, resources);
+        if (texture.getTileSize() != tileSize || texture.getBorder() != border) {
+            throw new IOException(directory + " was tiled with a different tile size or border");
+        }
+        textures.add(texture);
+
+        int root = texture.getLevels() - 1;
+        long key = tileKey(texture.getId(), root, 0, 0);
+        int page = acquirePage();
+        upload(page, decodeTile(texture, root, 0, 0));
+        pageKeys[page] = key;
+        pageLastUsed[page] = Long.MAX_VALUE; // Pinned
+        residentPages.put(key, page);
+        texture.setResident(root, 0, 0, page);
+        if (texture.updateIndirection(pagesPerSide)) {
+            cache.invalidateTextures();
+        }
+        return texture;
+    }
+
+    /**
+     * Size the feedback buffer for a new window size.
+     *
+     * @param width  drawable width in pixels, as passed to reshape()
+     * @param height drawable height in pixels
+     */
+    public void reshape(int width, int height) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        viewportWidth = width;
+        viewportHeight = height;
+        feedbackWidth = Math.max(1, width / FEEDBACK_DIVISOR);
+        feedbackHeight = Math.max(1, height / FEEDBACK_DIVISOR);
+
+        for (int texture : feedbackTextures) {
+            if (texture != 0) {
+                resources.release(GpuResources.Category.TEXTURE, texture);
+            }
+        }
+        gl.glGenTextures(2, feedbackTextures, 0);
+        resources.track(GpuResources.Category.TEXTURE, feedbackTextures[0], (long) feedbackWidth * feedbackHeight * 4,
+                "feedback color");
+        resources.track(GpuResources.Category.TEXTURE, feedbackTextures[1], (long) feedbackWidth * feedbackHeight * 4,
+                "feedback depth");
+        gl.glBindTexture(GL_TEXTURE_2D, feedbackTextures[0]);
+        gl.glTexStorage2D(GL_TEXTURE_2D, 1, GL_RGBA8, feedbackWidth, feedbackHeight);
+        gl.glBindTexture(GL_TEXTURE_2D, feedbackTextures[1]);
+        gl.glTexStorage2D(GL_TEXTURE_2D, 1, GL_DEPTH_COMPONENT24, feedbackWidth, feedbackHeight);
+        cache.invalidateTextures();
+
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, feedbackFramebuffer[0]);
+        gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, feedbackTextures[0], 0);
+        gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, feedbackTextures[1], 0);
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        for (int i = 0; i < readbackBuffers.length; i++) {
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, readbackBuffers[i]);
+            gl.glBufferData(GL_PIXEL_PACK_BUFFER, (long) feedbackWidth * feedbackHeight * 4, null, GL_STREAM_READ);
+            resources.resize(GpuResources.Category.BUFFER, readbackBuffers[i], (long) feedbackWidth * feedbackHeight * 4);
+            readbackPending[i] = false;
+        }
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Start of frame work: read last frame's feedback, upload finished tiles
+     * and refresh indirection textures. Call before drawing the scene.
+     */
+    public void update() {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        frame++;
+
+        // Read the feedback written the previous frame, the copy has finished by now
+        int previous = (int) (frame & 1);
+        if (readbackPending[previous]) {
+            readbackPending[previous] = false;
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, readbackBuffers[previous]);
+            ByteBuffer feedback = gl.glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0,
+                    (long) feedbackWidth * feedbackHeight * 4, GL_MAP_READ_BIT);
+            if (feedback != null) {
+                processFeedback(feedback.order(ByteOrder.LITTLE_ENDIAN));
+                gl.glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            }
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        }
+
+        int uploads = 0;
+        LoadedTile tile;
+        while (uploads < MAX_UPLOADS_PER_FRAME && (tile = loadedTiles.poll()) != null) {
+            pendingTiles.remove(tile.key);
+            int page = acquirePage();
+            if (page < 0) {
+                break; // Every page is in use this frame, the tile is requested again next frame
+            }
+            upload(page, tile.pixels);
+            pageKeys[page] = tile.key;
+            pageLastUsed[page] = frame;
+            residentPages.put(tile.key, page);
+            textures.get(keyTexture(tile.key) - 1).setResident(keyLevel(tile.key), keyX(tile.key), keyY(tile.key),
+                    page);
+            uploads++;
+        }
+
+        boolean indirectionBound = false;
+        for (VirtualTexture texture : textures) {
+            indirectionBound |= texture.updateIndirection(pagesPerSide);
+        }
+        if (indirectionBound) {
+            cache.invalidateTextures(); // Bound on whichever unit was active
+        }
+    }
+
+    /**
+     * Walk the feedback pixels, touch resident tiles and queue missing ones.
+     */
+    private void processFeedback(ByteBuffer feedback) {
+        int lastRequest = 0;
+        int pixels = feedbackWidth * feedbackHeight;
+        for (int i = 0; i < pixels; i++) {
+            int request = feedback.getInt(i * 4);
+            if (request == lastRequest || (request >>> 24) == 0) {
+                continue; // Neighbouring pixels usually want the same tile
+            }
+            lastRequest = request;
+            int x = request & 0xFF;
+            int y = (request >>> 8) & 0xFF;
+            int level = (request >>> 16) & 0xFF;
+            int id = request >>> 24;
+            if (id > textures.size() || level >= textures.get(id - 1).getLevels()) {
+                continue;
+            }
+            long key = tileKey(id, level, x, y);
+            Integer page = residentPages.get(key); // Moves the tile to the most recently used end
+            if (page != null) {
+                if (pageLastUsed[page] != Long.MAX_VALUE) {
+                    pageLastUsed[page] = frame;
+                }
+            } else if (pendingTiles.add(key)) {
+                VirtualTexture texture = textures.get(id - 1);
+                loader.execute(() -> {
+                    try {
+                        loadedTiles.add(new LoadedTile(key, decodeTile(texture, level, x, y)));
+                    } catch (IOException e) {
+                        System.err.println("Could not load tile " + texture.tileFile(level, x, y) + ": " + e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Bind the cache and indirection texture and set the uniforms for a
+     * virtual textured draw with the main program.
+     */
+    public void bind(VirtualTexture texture) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        cache.bindTexture2D(1, pageTexture);
+        cache.bindTexture2D(2, texture.getIndirectionTexture());
+        if (texture == boundTexture) {
+            return; // Uniforms are already set
+        }
+        boundTexture = texture;
+        gl.glUniform1i(virtualTextureID, 1);
+        gl.glUniform1f(vtSizeID, texture.getSize());
+        gl.glUniform1i(vtTilesID, texture.getTilesPerSide());
+        gl.glUniform1i(vtLevelsID, texture.getLevels());
+        gl.glUniform3f(vtPageID, tileSize, border, cacheSize);
+    }
+
+    /**
+     * Switch the main program back to its regular sampler.
+     */
+    public void unbind() {
+        if (boundTexture == null) {
+            return;
+        }
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        gl.glUniform1i(virtualTextureID, 0);
+        boundTexture = null;
+    }
+
+    /**
+     * Bind the feedback buffer and program. Follow with drawFeedback() for each
+     * object and finish with endFeedback().
+     */
+    public void beginFeedback(Matrix4f perspectiveMatrix) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        cache.bindFramebuffer(feedbackFramebuffer[0]);
+        gl.glViewport(0, 0, feedbackWidth, feedbackHeight);
+        cache.clearColor(0f, 0f, 0f, 0f);
+        gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        cache.useProgram(feedbackProgram);
+        gl.glUniformMatrix4fv(feedbackPID, 1, false, perspectiveMatrix.get(scratchBuffer));
+        // Derivatives are FEEDBACK_DIVISOR times larger than in the full size frame
+        gl.glUniform1f(feedbackBiasID, (float) -(Math.log(FEEDBACK_DIVISOR) / Math.log(2)));
+    }
+
+    /**
+     * Set up the next feedback draw. The caller issues the draw call.
+     *
+     * @param texture the object's virtual texture, or null for a regular texture
+     */
+    public void drawFeedback(VirtualTexture texture, Matrix4f modelViewMatrix) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        gl.glUniformMatrix4fv(feedbackMvID, 1, false, modelViewMatrix.get(scratchBuffer));
+        if (texture == null) {
+            gl.glUniform1i(feedbackIdID, 0);
+            return;
+        }
+        gl.glUniform1i(feedbackIdID, texture.getId());
+        gl.glUniform1f(feedbackSizeID, texture.getSize());
+        gl.glUniform1i(feedbackTilesID, texture.getTilesPerSide());
+        gl.glUniform1i(feedbackLevelsID, texture.getLevels());
+    }
+
+    /**
+     * Start the asynchronous read of the feedback buffer and restore the
+     * default framebuffer and the viewport of the last reshape(). The clear
+     * color is left for the next frame to set.
+     */
+    public void endFeedback() {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        int current = (int) ((frame + 1) & 1); // Mapped by update() next frame
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, readbackBuffers[current]);
+        gl.glReadPixels(0, 0, feedbackWidth, feedbackHeight, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        readbackPending[current] = true;
+
+        cache.bindFramebuffer(0);
+        gl.glViewport(0, 0, viewportWidth, viewportHeight);
+    }
+
+    public void dispose() {
+        loader.shutdownNow();
+        resources.release(GpuResources.Category.TEXTURE, pageTexture);
+        for (int texture : feedbackTextures) {
+            if (texture != 0) {
+                resources.release(GpuResources.Category.TEXTURE, texture);
+            }
+        }
+        resources.release(GpuResources.Category.FRAMEBUFFER, feedbackFramebuffer[0]);
+        for (int buffer : readbackBuffers) {
+            resources.release(GpuResources.Category.BUFFER, buffer);
+        }
+        resources.release(GpuResources.Category.PROGRAM, feedbackProgram);
+        for (VirtualTexture texture : textures) {
+            resources.release(GpuResources.Category.TEXTURE, texture.getIndirectionTexture());
+        }
+    }
+
+    /**
+     * Find a page for a new tile, evicting the least recently used tile that
+     * was not requested this frame.
+     *
+     * @return page index or -1 when every page is in use
+     */
+    private int acquirePage() {
+        if (nextFreePage < pageKeys.length) {
+            return nextFreePage++;
+        }
+        Iterator<Map.Entry<Long, Integer>> eldest = residentPages.entrySet().iterator();
+        while (eldest.hasNext()) {
+            Map.Entry<Long, Integer> entry = eldest.next();
+            int page = entry.getValue();
+            if (pageLastUsed[page] >= frame) {
+                continue; // Pinned or needed this frame
+            }
+            long key = entry.getKey();
+            eldest.remove();
+            textures.get(keyTexture(key) - 1).clearResident(keyLevel(key), keyX(key), keyY(key));
+            pageKeys[page] = -1;
+            return page;
+        }
+        return -1;
+    }
+
+    private void upload(int page, ByteBuffer pixels) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        cache.bindTexture2D(1, pageTexture);
+        gl.glTexSubImage2D(GL_TEXTURE_2D, 0, (page % pagesPerSide) * pageSize, (page / pagesPerSide) * pageSize,
+                pageSize, pageSize, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+    }
+
+    /**
+     * Read a tile image into RGBA bytes. Runs on the loader threads.
+     */
+    private ByteBuffer decodeTile(VirtualTexture texture, int level, int x, int y) throws IOException {
+        BufferedImage image = ImageIO.read(texture.tileFile(level, x, y));
+        if (image == null || image.getWidth() != pageSize || image.getHeight() != pageSize) {
+            throw new IOException("Unexpected tile image");
+        }
+        int[] argb = image.getRGB(0, 0, pageSize, pageSize, null, 0, pageSize);
+        byte[] rgba = new byte[argb.length * 4];
+        for (int i = 0; i < argb.length; i++) {
+            rgba[i * 4] = (byte) (argb[i] >>> 16);
+            rgba[i * 4 + 1] = (byte) (argb[i] >>> 8);
+            rgba[i * 4 + 2] = (byte) argb[i];
+            rgba[i * 4 + 3] = (byte) (argb[i] >>> 24);
+        }
+        return ByteBuffer.wrap(rgba);
+    }
+
+    private static long tileKey(int texture, int level, int x, int y) {
+        return ((long) texture << 40) | ((long) level << 32) | ((long) y << 16) | x;
+    }
+
+    private static int keyTexture(long key) {
+        return (int) (key >>> 40);
+    }
+
+    private static int keyLevel(long key) {
+        return (int) (key >>> 32) & 0xFF;
+    }
+
+    private static int keyX(long key) {
+        return (int) key & 0xFFFF;
+    }
+
+    private static int keyY(long key) {
+        return (int) (key >>> 16) & 0xFFFF;
+    }
+}
@@ -0,0 +1,170 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Offline tool that cuts a large image into the tiled mip pyramid read by
+ * VirtualTexture. The result is a directory that can be passed to Corridor in
+ * place of a texture file.
+ *
+ * Usage: java VirtualTextureTiler image.png output.vt
+ *
+ * The whole source image is held in memory while tiling, so a 16k x 16k image
+ * needs a heap of a few gigabytes (-Xmx4g).
+ */
+public class VirtualTextureTiler {
+    public static final String INFO_FILE = "tiles.properties";
+    public static final int TILE_SIZE = 128; // Shared by every texture in the page cache
+    public static final int BORDER = 4; // Texels copied from neighbours so bilinear filtering stays inside a page
+
+    // private constructor prevents instantiation (static only)
+    private VirtualTextureTiler() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java VirtualTextureTiler <image> <output directory>");
+            return;
+        }
+        try {
+            tile(new File(args[0]), new File(args[1]));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not tile " + args[0] + ": " + e);
+        }
+    }
+
+    /**
+     * Read the description written next to the tiles.
+     */
+    public static Properties readInfo(File directory) throws IOException {
+        Properties info = new Properties();
+        try (Reader reader = new FileReader(new File(directory, INFO_FILE))) {
+            info.load(reader);
+        }
+        return info;
+    }
+
+    /**
+     * @return the file holding tile (x, y) of a mip level
+     */
+    public static File tileFile(File directory, int level, int x, int y) {
+        return new File(new File(directory, Integer.toString(level)), x + "_" + y + ".png");
+    }
+
+    /**
+     * Resample the image to a square power of two, build every mip level and
+     * write each level out as bordered tiles named level/x_y.png.
+     */
+    public static void tile(File imageFile, File outputDirectory) throws IOException {
+        int tileSize = TILE_SIZE;
+        BufferedImage source = ImageIO.read(imageFile);
+        if (source == null) {
+            throw new IOException("Unreadable image " + imageFile);
+        }
+
+        int virtualSize = tileSize;
+        while (virtualSize < Math.max(source.getWidth(), source.getHeight())) {
+            virtualSize *= 2;
+        }
+        if (virtualSize / tileSize > 256) {
+            throw new IllegalArgumentException("Image is larger than " + 256 * tileSize + " texels per side");
+        }
+
+        int[] level = resample(source, virtualSize);
+        int levelSize = virtualSize;
+        int levels = 0;
+        while (true) {
+            writeLevel(level, levelSize, levels, tileSize, outputDirectory);
+            levels++;
+            if (levelSize == tileSize) {
+                break;
+            }
+            level = downsample(level, levelSize);
+            levelSize /= 2;
+        }
+
+        Properties info = new Properties();
+        info.setProperty("size", Integer.toString(virtualSize));
+        info.setProperty("tileSize", Integer.toString(tileSize));
+        info.setProperty("border", Integer.toString(BORDER));
+        info.setProperty("levels", Integer.toString(levels));
+        try (Writer writer = new FileWriter(new File(outputDirectory, INFO_FILE))) {
+            info.store(writer, "Virtual texture tiled from " + imageFile.getName());
+        }
+        System.out.println("Wrote " + levels + " levels of " + virtualSize + "px virtual texture to "
+                + outputDirectory);
+    }
+
+    /**
+     * Scale the image to a size x size ARGB pixel array, bottom row first to
+     * match the orientation TextureIO uses for regular hallway textures.
+     */
+    private static int[] resample(BufferedImage source, int size) {
+        BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, size, size, 0, 0, 0, source.getWidth(), source.getHeight(), null);
+        g.dispose();
+        return scaled.getRGB(0, 0, size, size, null, 0, size);
+    }
+
+    /**
+     * Box filter a level down to half its size.
+     */
+    private static int[] downsample(int[] pixels, int size) {
+        int half = size / 2;
+        int[] result = new int[half * half];
+        for (int y = 0; y < half; y++) {
+            for (int x = 0; x < half; x++) {
+                int i = (2 * y) * size + 2 * x;
+                int a = pixels[i], b = pixels[i + 1], c = pixels[i + size], d = pixels[i + size + 1];
+                int argb = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF)
+                            + ((d >>> shift) & 0xFF);
+                    argb |= ((sum + 2) / 4) << shift;
+                }
+                result[y * half + x] = argb;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write one level as tiles with a border that wraps around the image edges,
+     * matching the GL_REPEAT addressing used on the hallways.
+     */
+    private static void writeLevel(int[] pixels, int size, int level, int tileSize, File outputDirectory)
+            throws IOException {
+        File levelDirectory = new File(outputDirectory, Integer.toString(level));
+        if (!levelDirectory.isDirectory() && !levelDirectory.mkdirs()) {
+            throw new IOException("Could not create " + levelDirectory);
+        }
+        int pageSize = tileSize + 2 * BORDER;
+        int tiles = size / tileSize;
+        BufferedImage page = new BufferedImage(pageSize, pageSize, BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[pageSize];
+        for (int tileY = 0; tileY < tiles; tileY++) {
+            for (int tileX = 0; tileX < tiles; tileX++) {
+                for (int y = 0; y < pageSize; y++) {
+                    int sourceY = Math.floorMod(tileY * tileSize + y - BORDER, size);
+                    for (int x = 0; x < pageSize; x++) {
+                        int sourceX = Math.floorMod(tileX * tileSize + x - BORDER, size);
+                        row[x] = pixels[sourceY * size + sourceX];
+                    }
+                    page.setRGB(0, y, pageSize, 1, row, 0, pageSize);
+                }
+                ImageIO.write(page, "png", tileFile(outputDirectory, level, tileX, tileY));
+            }
+        }
+    }
+}
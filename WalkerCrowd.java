@@ -0,0 +1,255 @@
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.Matrix4f;
+
+/**
+ * A crowd of independent walkers doing the same loop as the camera, each with
+ * its own phase, walking and turning period, step count and step height.
+ *
+ * State is kept as structure of arrays so the update can be vectorised
+ * (vector/WalkerVectorKernel, built separately) and split across cores with fork/join. Positions are
+ * copied as three flat arrays into one instance buffer and every walker is
+ * drawn as a small marker with a single instanced draw call.
+ *
+ * Enable with -Dcorridor.walkers=COUNT.
+ */
+public class WalkerCrowd {
+    private static final String VERTEX_SHADER_FILE = "walker-vertex.glsl";
+    private static final String FRAGMENT_SHADER_FILE = "walker-fragment.glsl";
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNEL = "WalkerVectorKernel"; // Loaded by name, compiled separately from vector/
+    private static final int CHUNK = 8192; // Walkers per fork/join task
+
+    // Loop layout, shared with the camera path in Corridor
+    static final float HALL_LENGTH = 900f;
+    static final float HALF_LOOP = 450f;
+    static final float EYE_HEIGHT = (float) 2 / 3 - 0.5f;
+    private static final float LANE_WIDTH = 30f; // Walkers spread up to this far either side of the centre line
+
+    // Marker: an octahedron around the walker's position
+    private static final float[] MARKER = {
+            // Top half
+            0f, 10f, 0f, 4f, 0f, 0f, 0f, 0f, -4f,
+            0f, 10f, 0f, 0f, 0f, -4f, -4f, 0f, 0f,
+            0f, 10f, 0f, -4f, 0f, 0f, 0f, 0f, 4f,
+            0f, 10f, 0f, 0f, 0f, 4f, 4f, 0f, 0f,
+            // Bottom half
+            0f, -10f, 0f, 0f, 0f, -4f, 4f, 0f, 0f,
+            0f, -10f, 0f, -4f, 0f, 0f, 0f, 0f, -4f,
+            0f, -10f, 0f, 0f, 0f, 4f, -4f, 0f, 0f,
+            0f, -10f, 0f, 4f, 0f, 0f, 0f, 0f, 4f
+    };
+
+    // Per walker parameters (milliseconds and corridor units)
+    final int count;
+    final float[] cycleTime; // Time within the walker's own loop
+    final float[] cyclePeriod; // Time for the full loop, 4 * sidePeriod
+    final float[] sidePeriod; // Walking plus turning period
+    final float[] walkingPeriod;
+    final float[] stepFrequency; // stepCount * PI / HALL_LENGTH
+    final float[] stepHeight;
+    final float[] lane;
+
+    // Per walker output
+    final float[] x, y, z;
+
+    private final WalkerKernel kernel;
+    private final FloatBuffer instanceData;
+    private long lastUpdateNanos;
+
+    private int program;
+    private int[] vao = new int[1];
+    private int[] vbo = new int[2]; // Marker mesh, instance positions
+    private int v_matrixID, p_matrixID;
+    private final FloatBuffer scratchBuffer = Buffers.newDirectFloatBuffer(16);
+
+    /**
+     * Spread walkers around the loop with parameters scattered around the
+     * camera's own.
+     */
+    public WalkerCrowd(int count, int walkingPeriod, int turningPeriod, int stepCount, float stepHeight) {
+        this.count = count;
+        this.cycleTime = new float[count];
+        this.cyclePeriod = new float[count];
+        this.sidePeriod = new float[count];
+        this.walkingPeriod = new float[count];
+        this.stepFrequency = new float[count];
+        this.stepHeight = new float[count];
+        this.lane = new float[count];
+        this.x = new float[count];
+        this.y = new float[count];
+        this.z = new float[count];
+
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            float walk = Math.max(100f, walkingPeriod * (0.5f + random.nextFloat()));
+            float turn = Math.max(0f, turningPeriod * (0.5f + random.nextFloat()));
+            this.walkingPeriod[i] = walk;
+            this.sidePeriod[i] = walk + turn;
+            this.cyclePeriod[i] = 4 * (walk + turn);
+            this.cycleTime[i] = random.nextFloat() * cyclePeriod[i];
+            this.stepFrequency[i] = (float) (Math.max(1, stepCount + random.nextInt(5) - 2) * Math.PI / HALL_LENGTH);
+            this.stepHeight[i] = stepHeight * (0.5f + random.nextFloat());
+            this.lane[i] = (random.nextFloat() * 2 - 1) * LANE_WIDTH;
+        }
+        this.kernel = loadKernel();
+        this.instanceData = Buffers.newDirectFloatBuffer(3 * count);
+    }
+
+    /**
+     * Use the Vector API kernel when its module is present, else the scalar one.
+     */
+    private static WalkerKernel loadKernel() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            try {
+                return (WalkerKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.out.println("Vector API kernel unavailable, using scalar walkers: " + e);
+            }
+        }
+        return WalkerCrowd::updateScalar;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getKernelName() {
+        return kernel.getClass().getName().equals(VECTOR_KERNEL) ? "vector" : "scalar";
+    }
+
+    /**
+     * @return time the last update took on the CPU
+     */
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+
+    /**
+     * Advance every walker, spreading the work over the common fork/join pool.
+     */
+    public void update(float dt) {
+        long start = System.nanoTime();
+        if (count <= CHUNK) {
+            kernel.update(this, 0, count, dt);
+        } else {
+            ForkJoinPool.commonPool().invoke(new UpdateTask(0, count, dt));
+        }
+        lastUpdateNanos = System.nanoTime() - start;
+    }
+
+    private class UpdateTask extends RecursiveAction {
+        private final int from, to;
+        private final float dt;
+
+        UpdateTask(int from, int to, float dt) {
+            this.from = from;
+            this.to = to;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                kernel.update(WalkerCrowd.this, from, to, dt);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new UpdateTask(from, middle, dt), new UpdateTask(middle, to, dt));
+        }
+    }
+
+    /**
+     * Scalar walker update, the same maths as the camera path in
+     * Corridor.display(). Also finishes the tail of each vectorised range.
+     */
+    static void updateScalar(WalkerCrowd crowd, int from, int to, float dt) {
+        for (int i = from; i < to; i++) {
+            float t = crowd.cycleTime[i] + dt;
+            t -= (float) Math.floor(t / crowd.cyclePeriod[i]) * crowd.cyclePeriod[i];
+            crowd.cycleTime[i] = t;
+
+            int hallway = (int) (t / crowd.sidePeriod[i]);
+            float progress = Math.min(1f, (t - hallway * crowd.sidePeriod[i]) / crowd.walkingPeriod[i]);
+            float distance = progress * HALL_LENGTH;
+
+            float cornerX = (hallway == 1 || hallway == 2) ? HALF_LOOP : -HALF_LOOP;
+            float cornerZ = (hallway == 2 || hallway == 3) ? HALF_LOOP : -HALF_LOOP;
+            float dirX = hallway == 0 ? 1f : hallway == 2 ? -1f : 0f;
+            float dirZ = hallway == 1 ? 1f : hallway == 3 ? -1f : 0f;
+
+            crowd.x[i] = cornerX + dirX * distance - dirZ * crowd.lane[i];
+            crowd.z[i] = cornerZ + dirZ * distance + dirX * crowd.lane[i];
+            crowd.y[i] = EYE_HEIGHT
+                    + crowd.stepHeight[i] * Math.abs((float) Math.sin(crowd.stepFrequency[i] * distance));
+        }
+    }
+
+    /**
+     * Create the marker program, mesh and instance buffer.
+     */
+    public void init(GpuResources resources) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        program = resources.track(GpuResources.Category.PROGRAM,
+                Utils.createShaderProgram(VERTEX_SHADER_FILE, FRAGMENT_SHADER_FILE), 0, "walker program");
+        v_matrixID = gl.glGetUniformLocation(program, "v_matrix");
+        p_matrixID = gl.glGetUniformLocation(program, "p_matrix");
+
+        gl.glGenVertexArrays(1, vao, 0);
+        resources.track(GpuResources.Category.VERTEX_ARRAY, vao[0], 0, "walker VAO");
+        gl.glBindVertexArray(vao[0]);
+        gl.glGenBuffers(vbo.length, vbo, 0);
+
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
+        FloatBuffer markerBuffer = Buffers.newDirectFloatBuffer(MARKER);
+        gl.glBufferData(GL_ARRAY_BUFFER, markerBuffer.limit() * 4, markerBuffer, GL_STATIC_DRAW);
+        resources.track(GpuResources.Category.BUFFER, vbo[0], markerBuffer.limit() * 4, "walker marker");
+        gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        gl.glEnableVertexAttribArray(0);
+
+        // Instance buffer holds all x, then all y, then all z, straight from the arrays
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
+        gl.glBufferData(GL_ARRAY_BUFFER, (long) count * 3 * 4, null, GL_STREAM_DRAW);
+        resources.track(GpuResources.Category.BUFFER, vbo[1], (long) count * 3 * 4, "walker positions");
+        for (int axis = 0; axis < 3; axis++) {
+            gl.glVertexAttribPointer(1 + axis, 1, GL_FLOAT, false, 0, (long) axis * count * 4);
+            gl.glVertexAttribDivisor(1 + axis, 1);
+            gl.glEnableVertexAttribArray(1 + axis);
+        }
+    }
+
+    /**
+     * Upload the current positions and draw every walker. Leaves the walker
+     * program and VAO bound, as recorded in the cache.
+     */
+    public void draw(Matrix4f viewMatrix, Matrix4f perspectiveMatrix, GLStateCache cache) {
+        GL4 gl = (GL4) GLContext.getCurrentGL();
+        instanceData.clear();
+        instanceData.put(x).put(y).put(z).flip();
+
+        cache.useProgram(program);
+        cache.bindVertexArray(vao[0]);
+        cache.bindArrayBuffer(vbo[1]);
+        // Orphan last frame's positions rather than wait for the GPU to finish with them
+        gl.glBufferData(GL_ARRAY_BUFFER, (long) count * 3 * 4, null, GL_STREAM_DRAW);
+        gl.glBufferSubData(GL_ARRAY_BUFFER, 0, (long) count * 3 * 4, instanceData);
+
+        gl.glUniformMatrix4fv(v_matrixID, 1, false, viewMatrix.get(scratchBuffer));
+        gl.glUniformMatrix4fv(p_matrixID, 1, false, perspectiveMatrix.get(scratchBuffer));
+        gl.glDrawArraysInstanced(GL_TRIANGLES, 0, MARKER.length / 3, count);
+    }
+
+    public void dispose(GpuResources resources) {
+        for (int buffer : vbo) {
+            resources.release(GpuResources.Category.BUFFER, buffer);
+        }
+        resources.release(GpuResources.Category.VERTEX_ARRAY, vao[0]);
+        resources.release(GpuResources.Category.PROGRAM, program);
+    }
+}
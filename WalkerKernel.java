@@ -0,0 +1,14 @@
+/**
+ * Advances a range of walkers in a WalkerCrowd and writes their positions.
+ * The scalar version lives in WalkerCrowd, WalkerVectorKernel uses the
+ * incubating Vector API when the module is available.
+ */
+public interface WalkerKernel {
+    /**
+     * @param crowd walker state, structure of arrays
+     * @param from  first walker to update
+     * @param to    one past the last walker to update
+     * @param dt    milliseconds since the last update
+     */
+    void update(WalkerCrowd crowd, int from, int to, float dt);
+}
@@ -0,0 +1,26 @@
+#version 430
+
+uniform int vtId; // Virtual texture id, 0 when the object uses a regular texture
+uniform float vtSize; // Virtual texture size in texels
+uniform int vtTiles; // Tiles per side at level 0
+uniform int vtLevels; // Number of mip levels
+uniform float feedbackBias; // Corrects for the feedback buffer being smaller than the window
+
+in vec2 fragmentST;
+out vec4 color; // Requested tile x, tile y, mip level and texture id
+
+void main(void)
+{
+    if (vtId == 0) {
+        color = vec4(0.0);
+        return;
+    }
+    vec2 dx = dFdx(fragmentST * vtSize);
+    vec2 dy = dFdy(fragmentST * vtSize);
+    float lod = 0.5 * log2(max(dot(dx, dx), dot(dy, dy))) + feedbackBias;
+    int level = clamp(int(floor(lod)), 0, vtLevels - 1);
+
+    int tiles = max(vtTiles >> level, 1);
+    ivec2 tile = min(ivec2(fract(fragmentST) * float(tiles)), ivec2(tiles - 1));
+    color = vec4(tile, level, vtId) / 255.0;
+}
\ No newline at end of file
@@ -1,11 +1,50 @@
 #version 430
 layout (binding=0) uniform sampler2D sampler0;
+layout (binding=1) uniform sampler2D pageCache; // Resident virtual texture tiles
+layout (binding=2) uniform sampler2D indirection; // Page table of the current virtual texture
+layout (binding=3) uniform sampler2DArray lightmap; // Baked light, one layer per hallway
+
+uniform int virtualTexture; // 1 when the hallway uses a virtual texture
+uniform float vtSize; // Virtual texture size in texels
+uniform int vtTiles; // Tiles per side at level 0
+uniform int vtLevels; // Number of mip levels
+uniform vec3 vtPage; // Tile size, border and page cache size in texels
+uniform int lightmapLayer; // -1 when the hallway has no baked light
+
+const float LIGHTMAP_RANGE = 2.0; // LightmapBaker.RANGE
 
 in vec2 fragmentST;
+in vec2 fragmentLightmapST;
 out vec4 color; // Output final color
 
+vec4 sampleVirtual(vec2 st)
+{
+    // Pick the mip level the same way the feedback pass does
+    vec2 dx = dFdx(st * vtSize);
+    vec2 dy = dFdy(st * vtSize);
+    float lod = 0.5 * log2(max(dot(dx, dx), dot(dy, dy)));
+    int level = clamp(int(floor(lod)), 0, vtLevels - 1);
+
+    // Look up the resident page for this tile (or its closest resident ancestor)
+    vec2 uv = fract(st);
+    int tiles = max(vtTiles >> level, 1);
+    ivec2 tile = min(ivec2(uv * float(tiles)), ivec2(tiles - 1));
+    vec3 entry = floor(texelFetch(indirection, tile, level).xyz * 255.0 + 0.5);
+
+    vec2 inTile = fract(uv * float(max(vtTiles >> int(entry.z), 1)));
+    vec2 cacheTexel = entry.xy * (vtPage.x + 2.0 * vtPage.y) + vtPage.y + inTile * vtPage.x;
+    return textureLod(pageCache, cacheTexel / vtPage.z, 0.0);
+}
+
 void main(void)
 {
     // color = vColor; // Same color input as output
-    color = texture(sampler0, fragmentST); // Texture output
+    if (virtualTexture == 1) {
+        color = sampleVirtual(fragmentST);
+    } else {
+        color = texture(sampler0, fragmentST); // Texture output
+    }
+    if (lightmapLayer >= 0) {
+        color.rgb *= texture(lightmap, vec3(fragmentLightmapST, lightmapLayer)).rgb * LIGHTMAP_RANGE;
+    }
 }
\ No newline at end of file
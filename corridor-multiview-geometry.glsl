@@ -0,0 +1,32 @@
+#version 430
+#define MAX_VIEWS 8 // MultiView.MAX_VIEWS
+
+// One invocation per view, each sends its copy of the triangle to its own viewport
+layout (triangles, invocations = MAX_VIEWS) in;
+layout (triangle_strip, max_vertices = 3) out;
+
+uniform mat4 p_matrix;
+uniform mat4 view_offsets[MAX_VIEWS]; // Turns the shared view into each view, applied in view space
+uniform int viewCount;
+
+in vec2 geometryST[];
+in vec2 geometryLightmapST[];
+
+out vec2 fragmentST;
+out vec2 fragmentLightmapST;
+
+void main(void)
+{
+    if (gl_InvocationID >= viewCount) {
+        return; // Emit nothing for unused views
+    }
+    mat4 projection = p_matrix * view_offsets[gl_InvocationID];
+    for (int i = 0; i < 3; i++) {
+        gl_Position = projection * gl_in[i].gl_Position;
+        gl_ViewportIndex = gl_InvocationID;
+        fragmentST = geometryST[i];
+        fragmentLightmapST = geometryLightmapST[i];
+        EmitVertex();
+    }
+    EndPrimitive();
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+#version 430
+
+layout (location=0) in vec3 position;
+layout (location=1) in vec2 vertexST;
+layout (location=2) in vec2 vertexLightmapST; // Only set when a lightmap is loaded
+
+uniform mat4 mv_matrix; // Model and the shared view, each view's offset is applied in the geometry shader
+
+out vec2 geometryST;
+out vec2 geometryLightmapST;
+
+void main(void) {
+    gl_Position = mv_matrix * vec4(position, 1.0); // View space, projected per view
+    geometryST = vertexST;
+    geometryLightmapST = vertexLightmapST;
+}
\ No newline at end of file
@@ -2,13 +2,16 @@
 
 layout (location=0) in vec3 position;  // input is a triple
 layout (location=1) in vec2 vertexST;
+layout (location=2) in vec2 vertexLightmapST; // Only set when a lightmap is loaded
 
 uniform mat4 mv_matrix;	// access to MV matrix
 uniform mat4 p_matrix;	// access to P matrix
 
 out vec2 fragmentST;
+out vec2 fragmentLightmapST;
 
 void main(void) {	// output a quadruple
     gl_Position = p_matrix * mv_matrix * vec4(position, 1.0);
     fragmentST = vertexST;
+    fragmentLightmapST = vertexLightmapST;
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+#version 430
+layout (local_size_x=8, local_size_y=8) in;
+
+layout (binding=0) uniform sampler2D source;
+layout (rgba16f, binding=0) writeonly uniform image2D blurred;
+
+uniform vec2 direction; // One texel along the blur axis, in texture coordinates
+
+// 9 tap Gaussian folded into 5 bilinear fetches
+const float offsets[3] = float[](0.0, 1.3846153846, 3.2307692308);
+const float weights[3] = float[](0.2270270270, 0.3162162162, 0.0702702703);
+
+void main(void)
+{
+    ivec2 texel = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(blurred);
+    if (texel.x >= size.x || texel.y >= size.y) {
+        return;
+    }
+    vec2 uv = (vec2(texel) + 0.5) / vec2(size);
+    vec3 sum = textureLod(source, uv, 0.0).rgb * weights[0];
+    for (int i = 1; i < 3; i++) {
+        sum += textureLod(source, uv + direction * offsets[i], 0.0).rgb * weights[i];
+        sum += textureLod(source, uv - direction * offsets[i], 0.0).rgb * weights[i];
+    }
+    imageStore(blurred, texel, vec4(sum, 1.0));
+}
\ No newline at end of file
@@ -0,0 +1,26 @@
+#version 430
+layout (local_size_x=8, local_size_y=8) in;
+
+layout (binding=0) uniform sampler2D scene; // Full resolution HDR scene
+layout (rgba16f, binding=0) writeonly uniform image2D bright; // Half resolution output
+
+uniform float threshold; // Luminance where bloom starts
+uniform float knee; // Width of the soft transition below the threshold
+
+void main(void)
+{
+    ivec2 texel = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(bright);
+    if (texel.x >= size.x || texel.y >= size.y) {
+        return;
+    }
+    // One bilinear fetch between four scene texels averages them
+    vec3 color = textureLod(scene, (vec2(texel) + 0.5) / vec2(size), 0.0).rgb;
+
+    // Soft threshold so highlights fade in rather than pop
+    float brightness = max(color.r, max(color.g, color.b));
+    float soft = clamp(brightness - threshold + knee, 0.0, 2.0 * knee);
+    soft = soft * soft / (4.0 * knee + 1e-4);
+    float contribution = max(soft, brightness - threshold) / max(brightness, 1e-4);
+    imageStore(bright, texel, vec4(color * contribution, 1.0));
+}
\ No newline at end of file
@@ -0,0 +1,121 @@
+#version 430
+layout (local_size_x=8, local_size_y=8) in;
+
+layout (binding=0) uniform sampler2D source; // Tone mapped color with luma in alpha
+layout (rgba8, binding=0) writeonly uniform image2D antialiased;
+
+// Quality settings of FXAA 3.11's default preset
+const float EDGE_THRESHOLD = 0.166;
+const float EDGE_THRESHOLD_MIN = 0.0833;
+const float SUBPIXEL = 0.75;
+const int SEARCH_STEPS = 8;
+
+float luma(vec2 uv)
+{
+    return textureLod(source, uv, 0.0).a;
+}
+
+void main(void)
+{
+    ivec2 texel = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(antialiased);
+    if (texel.x >= size.x || texel.y >= size.y) {
+        return;
+    }
+    vec2 pixel = 1.0 / vec2(size);
+    vec2 uv = (vec2(texel) + 0.5) * pixel;
+    vec4 centre = textureLod(source, uv, 0.0);
+
+    // Local contrast, skip pixels that are not on an edge
+    float lumaN = luma(uv + vec2(0.0, pixel.y));
+    float lumaS = luma(uv - vec2(0.0, pixel.y));
+    float lumaE = luma(uv + vec2(pixel.x, 0.0));
+    float lumaW = luma(uv - vec2(pixel.x, 0.0));
+    float lumaMax = max(centre.a, max(max(lumaN, lumaS), max(lumaE, lumaW)));
+    float lumaMin = min(centre.a, min(min(lumaN, lumaS), min(lumaE, lumaW)));
+    float range = lumaMax - lumaMin;
+    if (range < max(EDGE_THRESHOLD_MIN, lumaMax * EDGE_THRESHOLD)) {
+        imageStore(antialiased, texel, vec4(centre.rgb, 1.0));
+        return;
+    }
+
+    float lumaNE = luma(uv + pixel);
+    float lumaSW = luma(uv - pixel);
+    float lumaNW = luma(uv + vec2(-pixel.x, pixel.y));
+    float lumaSE = luma(uv + vec2(pixel.x, -pixel.y));
+
+    // Sub-pixel aliasing amount from the 3x3 neighbourhood average
+    float average = (2.0 * (lumaN + lumaS + lumaE + lumaW) + lumaNE + lumaSW + lumaNW + lumaSE) / 12.0;
+    float subpixel = clamp(abs(average - centre.a) / range, 0.0, 1.0);
+    subpixel = smoothstep(0.0, 1.0, subpixel);
+    subpixel = subpixel * subpixel * SUBPIXEL;
+
+    // Is the edge horizontal or vertical
+    float horizontal = abs(lumaNW + lumaNE - 2.0 * lumaN) + 2.0 * abs(lumaW + lumaE - 2.0 * centre.a)
+            + abs(lumaSW + lumaSE - 2.0 * lumaS);
+    float vertical = abs(lumaNW + lumaSW - 2.0 * lumaW) + 2.0 * abs(lumaN + lumaS - 2.0 * centre.a)
+            + abs(lumaNE + lumaSE - 2.0 * lumaE);
+    bool isHorizontal = horizontal >= vertical;
+
+    // Pick the side of the edge with the larger gradient
+    float stepLength = isHorizontal ? pixel.y : pixel.x;
+    float luma1 = isHorizontal ? lumaS : lumaW;
+    float luma2 = isHorizontal ? lumaN : lumaE;
+    float gradient1 = abs(luma1 - centre.a);
+    float gradient2 = abs(luma2 - centre.a);
+    float lumaLocal;
+    if (gradient1 >= gradient2) {
+        stepLength = -stepLength;
+        lumaLocal = 0.5 * (luma1 + centre.a);
+    } else {
+        lumaLocal = 0.5 * (luma2 + centre.a);
+    }
+    float gradientScaled = 0.25 * max(gradient1, gradient2);
+
+    // Walk along the edge in both directions until its end
+    vec2 edgeUV = uv;
+    vec2 along = isHorizontal ? vec2(pixel.x, 0.0) : vec2(0.0, pixel.y);
+    if (isHorizontal) {
+        edgeUV.y += 0.5 * stepLength;
+    } else {
+        edgeUV.x += 0.5 * stepLength;
+    }
+    vec2 uv1 = edgeUV - along;
+    vec2 uv2 = edgeUV + along;
+    float end1 = luma(uv1) - lumaLocal;
+    float end2 = luma(uv2) - lumaLocal;
+    bool reached1 = abs(end1) >= gradientScaled;
+    bool reached2 = abs(end2) >= gradientScaled;
+    for (int i = 1; i < SEARCH_STEPS && !(reached1 && reached2); i++) {
+        float stride = i < 4 ? 1.0 : 2.0;
+        if (!reached1) {
+            uv1 -= along * stride;
+            end1 = luma(uv1) - lumaLocal;
+            reached1 = abs(end1) >= gradientScaled;
+        }
+        if (!reached2) {
+            uv2 += along * stride;
+            end2 = luma(uv2) - lumaLocal;
+            reached2 = abs(end2) >= gradientScaled;
+        }
+    }
+
+    // Blend towards the edge by how close the pixel is to its nearer end
+    float distance1 = isHorizontal ? uv.x - uv1.x : uv.y - uv1.y;
+    float distance2 = isHorizontal ? uv2.x - uv.x : uv2.y - uv.y;
+    bool nearer1 = distance1 < distance2;
+    float nearest = min(distance1, distance2);
+    float edgeLength = distance1 + distance2;
+    bool centreBelow = centre.a < lumaLocal;
+    bool correctVariation = ((nearer1 ? end1 : end2) < 0.0) != centreBelow;
+    float edgeOffset = correctVariation ? 0.5 - nearest / edgeLength : 0.0;
+    float offset = max(edgeOffset, subpixel);
+
+    vec2 finalUV = uv;
+    if (isHorizontal) {
+        finalUV.y += offset * stepLength;
+    } else {
+        finalUV.x += offset * stepLength;
+    }
+    imageStore(antialiased, texel, vec4(textureLod(source, finalUV, 0.0).rgb, 1.0));
+}
\ No newline at end of file
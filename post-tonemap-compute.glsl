@@ -0,0 +1,29 @@
+#version 430
+layout (local_size_x=8, local_size_y=8) in;
+
+layout (binding=0) uniform sampler2D scene; // Full resolution HDR scene
+layout (binding=1) uniform sampler2D bloom; // Blurred half resolution highlights
+layout (rgba8, binding=0) writeonly uniform image2D mapped; // Display range output, luma in alpha for FXAA
+
+uniform float exposure;
+uniform float bloomStrength;
+
+// Narkowicz's fit of the ACES filmic curve
+vec3 filmic(vec3 x)
+{
+    return clamp((x * (2.51 * x + 0.03)) / (x * (2.43 * x + 0.59) + 0.14), 0.0, 1.0);
+}
+
+void main(void)
+{
+    ivec2 texel = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(mapped);
+    if (texel.x >= size.x || texel.y >= size.y) {
+        return;
+    }
+    vec2 uv = (vec2(texel) + 0.5) / vec2(size);
+    vec3 color = texelFetch(scene, texel, 0).rgb + textureLod(bloom, uv, 0.0).rgb * bloomStrength;
+    color = filmic(color * exposure);
+    float luma = dot(color, vec3(0.299, 0.587, 0.114));
+    imageStore(mapped, texel, vec4(color, luma));
+}
\ No newline at end of file
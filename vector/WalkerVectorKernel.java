@@ -0,0 +1,75 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of the walker update using jdk.incubator.vector. Lanes left
+ * over at the end of a range go through the scalar loop.
+ *
+ * Kept out of the main source directory because it only compiles with the
+ * incubator module. Build it against the compiled main classes and put its
+ * output on the class path next to them:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp "out;Libraries/*" -d vector/out vector/WalkerVectorKernel.java
+ *   java --add-modules jdk.incubator.vector -cp "out;vector/out;Libraries/*" Corridor ...
+ *
+ * WalkerCrowd loads it by name and falls back to its scalar loop when the
+ * module or the class is missing.
+ */
+public class WalkerVectorKernel implements WalkerKernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void update(WalkerCrowd crowd, int from, int to, float dt) {
+        float[] cycleTime = crowd.cycleTime;
+        int i = from;
+        int upperBound = from + SPECIES.loopBound(to - from);
+        for (; i < upperBound; i += SPECIES.length()) {
+            FloatVector cycle = FloatVector.fromArray(SPECIES, crowd.cyclePeriod, i);
+            FloatVector side = FloatVector.fromArray(SPECIES, crowd.sidePeriod, i);
+            FloatVector walk = FloatVector.fromArray(SPECIES, crowd.walkingPeriod, i);
+
+            // Advance and wrap the time within this walker's own loop
+            FloatVector t = FloatVector.fromArray(SPECIES, cycleTime, i).add(dt);
+            t = t.sub(floor(t.div(cycle)).mul(cycle));
+            t.intoArray(cycleTime, i);
+
+            // Which hallway, and how far along it
+            FloatVector hallway = floor(t.div(side));
+            FloatVector progress = t.sub(hallway.mul(side)).div(walk).min(1f);
+            FloatVector distance = progress.mul(WalkerCrowd.HALL_LENGTH);
+
+            VectorMask<Float> hall0 = hallway.compare(VectorOperators.EQ, 0f);
+            VectorMask<Float> hall1 = hallway.compare(VectorOperators.EQ, 1f);
+            VectorMask<Float> hall2 = hallway.compare(VectorOperators.EQ, 2f);
+            VectorMask<Float> hall3 = hallway.compare(VectorOperators.EQ, 3f);
+
+            // Corner the hallway starts from and the direction it runs in
+            FloatVector negative = FloatVector.broadcast(SPECIES, -WalkerCrowd.HALF_LOOP);
+            FloatVector positive = FloatVector.broadcast(SPECIES, WalkerCrowd.HALF_LOOP);
+            FloatVector cornerX = negative.blend(positive, hall1.or(hall2));
+            FloatVector cornerZ = negative.blend(positive, hall2.or(hall3));
+            FloatVector zero = FloatVector.zero(SPECIES);
+            FloatVector dirX = zero.blend(1f, hall0).blend(-1f, hall2);
+            FloatVector dirZ = zero.blend(1f, hall1).blend(-1f, hall3);
+
+            // Walk along the direction, offset sideways into the walker's lane
+            FloatVector lane = FloatVector.fromArray(SPECIES, crowd.lane, i);
+            cornerX.add(dirX.mul(distance)).sub(dirZ.mul(lane)).intoArray(crowd.x, i);
+            cornerZ.add(dirZ.mul(distance)).add(dirX.mul(lane)).intoArray(crowd.z, i);
+
+            // Bounce once per step
+            FloatVector bounce = distance.mul(FloatVector.fromArray(SPECIES, crowd.stepFrequency, i))
+                    .lanewise(VectorOperators.SIN).abs();
+            bounce.mul(FloatVector.fromArray(SPECIES, crowd.stepHeight, i)).add(WalkerCrowd.EYE_HEIGHT)
+                    .intoArray(crowd.y, i);
+        }
+        WalkerCrowd.updateScalar(crowd, i, to, dt);
+    }
+
+    // Times are never negative, so truncating is the same as flooring
+    private static FloatVector floor(FloatVector v) {
+        return (FloatVector) v.convert(VectorOperators.F2I, 0).convert(VectorOperators.I2F, 0);
+    }
+}
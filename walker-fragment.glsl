@@ -0,0 +1,9 @@
+#version 430
+
+in vec3 markerColor;
+out vec4 color; // Output final color
+
+void main(void)
+{
+    color = vec4(markerColor, 1.0);
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+#version 430
+
+layout (location=0) in vec3 position; // Marker vertex
+layout (location=1) in float walkerX; // Per walker position, one value per instance
+layout (location=2) in float walkerY;
+layout (location=3) in float walkerZ;
+
+uniform mat4 v_matrix;
+uniform mat4 p_matrix;
+
+out vec3 markerColor;
+
+void main(void) {
+    vec3 worldPosition = position + vec3(walkerX, walkerY, walkerZ);
+    gl_Position = p_matrix * v_matrix * vec4(worldPosition, 1.0);
+
+    // Golden ratio hue per walker so neighbours are easy to tell apart
+    float hue = fract(float(gl_InstanceID) * 0.618034);
+    vec3 rgb = clamp(abs(fract(hue + vec3(0.0, 2.0 / 3.0, 1.0 / 3.0)) * 6.0 - 3.0) - 1.0, 0.0, 1.0);
+    markerColor = rgb * (0.7 + 0.03 * position.y); // Lighter at the top
+}
\ No newline at end of file